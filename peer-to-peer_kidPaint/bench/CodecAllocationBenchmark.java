@@ -0,0 +1,146 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+// Bytes allocated per MSG_PIXELS message on the paths every drawing update takes, measured with
+// the JVM's per-thread allocation counter. Receiving (framing, decoding, applying) must not
+// allocate at all; the run fails if it does. Sending allocates one shared frame per broadcast,
+// shown per broadcast and per client to confirm it doesn't grow with the studio.
+//   java -cp out CodecAllocationBenchmark
+public class CodecAllocationBenchmark {
+    static final int MESSAGES = 200_000;
+    static final int CLIENTS = 30;
+
+    static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    interface Op { void run() throws IOException; }
+
+    public static void main(String[] args) throws IOException {
+        PixelBatch[] batches = strokes(new Random(42), 64, 500);
+        boolean ok = true;
+        ok &= receive("client, frames, MSG_PIXELS_COMPACT", batches, true, true);
+        ok &= receive("client, frames, MSG_PIXELS", batches, true, false);
+        ok &= receive("client, legacy layout, MSG_PIXELS_COMPACT", batches, false, true);
+        ok &= nioReceive("server NIO loop, frames, MSG_PIXELS_COMPACT", batches);
+        send(batches);
+        if (!ok) {
+            System.out.println("A receive path allocates");
+            System.exit(1);
+        }
+    }
+
+    // MainWindow.listen: Protocol.Reader, PixelCodec into the reused batch, PredictedCanvas
+    static boolean receive(String name, PixelBatch[] batches, boolean framed, boolean compact) throws IOException {
+        Protocol.Reader reader = new Protocol.Reader(new Replay(messages(batches, framed, compact)));
+        PredictedCanvas sketch = new PredictedCanvas(500);
+        sketch.enablePrediction();
+        PixelBatch incoming = new PixelBatch();
+        return report(name, measure(() -> {
+            int type = reader.next(framed);
+            if (type == Protocol.MSG_PIXELS_COMPACT) PixelCodec.readCompact(reader.body(), incoming);
+            else PixelCodec.readLegacy(reader.body(), incoming);
+            sketch.serverPixels(incoming);
+        }));
+    }
+
+    // NioServer.EventLoop.read: frame header, then the body through the loop's Protocol.Body.
+    // The server decodes into a new batch per message, since it is handed to the studio loop;
+    // here it is reused to measure just the framing and decoding.
+    static boolean nioReceive(String name, PixelBatch[] batches) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(messages(batches, true, true));
+        Protocol.Body body = new Protocol.Body();
+        PixelBatch into = new PixelBatch();
+        return report(name, measure(() -> {
+            if (!buf.hasRemaining()) buf.rewind();
+            int start = buf.position();
+            int len = Protocol.frameLength(buf);
+            int bodyAt = Protocol.bodyOffset(buf, start);
+            PixelCodec.readCompact(body.of(buf.array(), bodyAt, start + len - bodyAt), into);
+            buf.position(start + len);
+        }));
+    }
+
+    // PaintServerHost.broadcastPixelBatch and each client's writer, to CLIENTS compact clients
+    static void send(PixelBatch[] batches) throws IOException {
+        OutputStream[] sockets = new OutputStream[CLIENTS];
+        for (int c = 0; c < CLIENTS; c++) sockets[c] = new BufferedOutputStream(OutputStream.nullOutputStream(), 64 * 1024);
+        int[] next = new int[1];
+        double perBroadcast = measure(() -> {
+            Frame f = Frame.pixels(batches[next[0]++ % batches.length], 0);
+            for (OutputStream out : sockets) Protocol.writeFrame(out, f.encoded(Protocol.FEATURE_COMPACT_PIXELS));
+        });
+        System.out.printf("%-48s %8.1f B per broadcast, %6.1f B per client%n",
+                "server broadcast to " + CLIENTS + " clients", perBroadcast, perBroadcast / CLIENTS);
+    }
+
+    static boolean report(String name, double bytes) {
+        System.out.printf("%-48s %8.1f B per message%s%n", name, bytes, bytes < 1 ? "" : "  <-- allocates");
+        return bytes < 1;
+    }
+
+    // Bytes allocated per call on this thread, after warm-up so the JIT has settled
+    static double measure(Op op) throws IOException {
+        for (int i = 0; i < MESSAGES; i++) op.run();
+        long before = THREADS.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < MESSAGES; i++) op.run();
+        return (double) (THREADS.getCurrentThreadAllocatedBytes() - before) / MESSAGES;
+    }
+
+    static byte[] messages(PixelBatch[] batches, boolean framed, boolean compact) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (PixelBatch b : batches) {
+            FrameBuffer fb = FrameBuffer.acquire(compact ? Protocol.MSG_PIXELS_COMPACT : Protocol.MSG_PIXELS);
+            if (compact) PixelCodec.writeCompact(fb, b);
+            else PixelCodec.writeLegacy(fb, b);
+            byte[] message = fb.toByteArray();
+            if (framed) Protocol.writeFrame(bytes, message);
+            else bytes.write(message);
+        }
+        return bytes.toByteArray();
+    }
+
+    // Pen strokes of 20 to 80 points, as one drawFlushMs worth of drawing each
+    static PixelBatch[] strokes(Random rnd, int count, int size) {
+        PixelBatch[] batches = new PixelBatch[count];
+        for (int i = 0; i < count; i++) {
+            PixelBatch b = new PixelBatch();
+            b.reset(0xFF000000 | rnd.nextInt(0xFFFFFF));
+            int x = rnd.nextInt(size), y = rnd.nextInt(size);
+            for (int p = 20 + rnd.nextInt(60); p > 0; p--) {
+                x = Math.floorMod(x + rnd.nextInt(3) - 1, size);
+                y = Math.floorMod(y + rnd.nextInt(3) - 1, size);
+                b.add(x, y);
+            }
+            batches[i] = b;
+        }
+        return batches;
+    }
+
+    // The same bytes over and over, like a socket that never runs dry
+    static final class Replay extends InputStream {
+        private final byte[] data;
+        private int pos;
+
+        Replay(byte[] data) { this.data = data; }
+
+        @Override
+        public int read() {
+            if (pos == data.length) pos = 0;
+            return data[pos++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (pos == data.length) pos = 0;
+            int n = Math.min(len, data.length - pos);
+            System.arraycopy(data, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+    }
+}
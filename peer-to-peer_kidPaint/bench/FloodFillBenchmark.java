@@ -0,0 +1,88 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+
+// Time and allocation of one Bucket click: the old Point/LinkedList BFS against FloodFill,
+// on a blank canvas, a serpentine maze (one long corridor) and a checkerboard whose every
+// other row is split into single-pixel spans.
+//   java -cp out FloodFillBenchmark
+public class FloodFillBenchmark {
+    static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) {
+        for (int size : new int[] { 500, 2000 }) {
+            run(size + "px blank", new TiledCanvas(size));
+            run(size + "px maze", maze(size));
+            run(size + "px checkerboard", checkerboard(size));
+        }
+    }
+
+    static void run(String name, TiledCanvas canvas) {
+        FloodFill fill = new FloodFill();
+        int color = 0xFF3498DB;
+        for (int i = 0; i < 3; i++) { // warm-up
+            pointFill(canvas, 0, 0, color);
+            fill.fill(canvas, 0, 0, color, new PixelBatch());
+        }
+
+        long a0 = allocated(), t0 = System.nanoTime();
+        int points = pointFill(canvas, 0, 0, color).size();
+        long t1 = System.nanoTime(), a1 = allocated();
+        PixelBatch spans = fill.fill(canvas, 0, 0, color, new PixelBatch());
+        long t2 = System.nanoTime(), a2 = allocated();
+
+        if (spans.pixelCount() != points) throw new AssertionError(name + ": " + spans.pixelCount() + " != " + points);
+        System.out.printf("%-20s %9d px | points %8.1f ms %9.1f MB | spans %8d runs %7.1f ms %7.2f MB%n",
+                name, points, (t1 - t0) / 1e6, (a1 - a0) / 1e6, spans.runCount, (t2 - t1) / 1e6, (a2 - a1) / 1e6);
+    }
+
+    static long allocated() {
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().threadId());
+    }
+
+    // The fill MainWindow used before, minus the final write back
+    static List<int[]> pointFill(TiledCanvas grid, int x, int y, int replaceColor) {
+        List<int[]> result = new ArrayList<>();
+        int targetColor = grid.get(x, y);
+        if (targetColor == replaceColor) return result;
+        int size = grid.size();
+        boolean[][] visited = new boolean[size][size];
+        Queue<int[]> queue = new LinkedList<>();
+        queue.add(new int[] { x, y });
+        visited[x][y] = true;
+        while (!queue.isEmpty()) {
+            int[] p = queue.poll();
+            result.add(p);
+            int[] dx = {0, 0, 1, -1};
+            int[] dy = {1, -1, 0, 0};
+            for (int i = 0; i < 4; i++) {
+                int nx = p[0] + dx[i], ny = p[1] + dy[i];
+                if (nx >= 0 && nx < size && ny >= 0 && ny < size && !visited[nx][ny] && grid.get(nx, ny) == targetColor) {
+                    visited[nx][ny] = true;
+                    queue.add(new int[] { nx, ny });
+                }
+            }
+        }
+        return result;
+    }
+
+    // Vertical walls every 4 columns with a gap alternating between bottom and top
+    static TiledCanvas maze(int size) {
+        TiledCanvas c = new TiledCanvas(size);
+        for (int x = 2, k = 0; x < size; x += 4, k++)
+            for (int y = 0; y < size; y++)
+                if (k % 2 == 0 ? y < size - 2 : y >= 2) c.set(x, y, 0xFF000000);
+        return c;
+    }
+
+    // Odd rows alternate painted and blank pixels; even rows stay blank and connect them
+    static TiledCanvas checkerboard(int size) {
+        TiledCanvas c = new TiledCanvas(size);
+        for (int y = 1; y < size; y += 2)
+            for (int x = 0; x < size; x += 2) c.set(x, y, 0xFF000000);
+        return c;
+    }
+}
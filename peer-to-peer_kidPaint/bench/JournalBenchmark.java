@@ -0,0 +1,78 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+// Cost of journaling every edit and how long a studio takes to come back after a crash:
+// after a long session (snapshots + journal), then a snapshot plus a short journal tail.
+//   java -cp out JournalBenchmark [directory]
+public class JournalBenchmark {
+    public static void main(String[] args) throws IOException {
+        File dir = new File(args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir"), "kidpaint-journal-bench");
+        for (int size : new int[] { 1024, 4096 }) {
+            for (File f : dir.listFiles() == null ? new File[0] : dir.listFiles()) f.delete();
+            dir.mkdirs();
+            String name = "bench" + size;
+
+            // Session 1: nothing to recover
+            Journal journal = new Journal(dir, name);
+            TiledCanvas canvas = new TiledCanvas(size);
+            journal.recover(size);
+            StudioLoop loop = new StudioLoop("bench-" + size);
+            loop.start();
+            journal.start(loop, canvas);
+            draw(loop, journal, canvas, 20_000, 1);
+            journal.close();
+            System.out.println(size + "px session 1: " + journal.report());
+
+            // Session 2: recovers, folds that into a snapshot at start, then draws a tail
+            journal = new Journal(dir, name);
+            long t0 = System.nanoTime();
+            TiledCanvas restored = journal.recover(size);
+            long t1 = System.nanoTime();
+            check(canvas, restored);
+            System.out.printf("%dpx recovery after session 1: %.1f ms%n", size, (t1 - t0) / 1e6);
+            journal.start(loop, restored);
+            draw(loop, journal, restored, 2_000, 2);
+            journal.close();
+            System.out.println(size + "px session 2: " + journal.report());
+
+            // Session 3: snapshot + tail
+            journal = new Journal(dir, name);
+            t0 = System.nanoTime();
+            TiledCanvas again = journal.recover(size);
+            t1 = System.nanoTime();
+            check(restored, again);
+            System.out.printf("%dpx recovery from the start-up snapshot + session 2 tail: %.1f ms%n%n", size, (t1 - t0) / 1e6);
+        }
+    }
+
+    // Random strokes, one command each on the loop, journaled the way the server does
+    static void draw(StudioLoop loop, Journal journal, TiledCanvas canvas, int strokes, long seed) {
+        Random random = new Random(seed);
+        int size = canvas.size();
+        Stroke stroke = new Stroke();
+        PixelBatch spans = new PixelBatch();
+        long t0 = System.nanoTime();
+        for (int i = 0; i < strokes; i++) {
+            loop.execute(() -> {
+                stroke.reset(0xFF000000 | random.nextInt(0xFFFFFF), random.nextInt(8));
+                int x = random.nextInt(size), y = random.nextInt(size);
+                stroke.add(x, y);
+                for (int p = 0; p < 20; p++) stroke.add(x += random.nextInt(41) - 20, y += random.nextInt(41) - 20);
+                stroke.clampTo(size);
+                stroke.rasterize(size, spans);
+                for (int r = 0; r < spans.runCount; r++) canvas.fillSpan(spans.x(r), spans.y(r), spans.length(r), spans.color);
+                journal.pixels(spans);
+            });
+        }
+        loop.call(() -> null); // Wait for the last stroke
+        System.out.printf("%dpx %d strokes drawn and journaled in %.1f ms%n", size, strokes, (System.nanoTime() - t0) / 1e6);
+    }
+
+    static void check(TiledCanvas expected, TiledCanvas actual) {
+        int size = expected.size();
+        for (int y = 0; y < size; y++)
+            for (int x = 0; x < size; x++)
+                if (expected.get(x, y) != actual.get(x, y)) throw new AssertionError("Pixel " + x + "," + y + " differs");
+    }
+}
@@ -0,0 +1,200 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Cost of many connected clients in each server I/O mode. N synthetic spectators join one studio
+// while a drawer streams 20 batches a second (a kid drawing with the default drawFlushMs); then
+// probe batches are sent one at a time and timed until the last spectator has read each.
+// Spectators send no MSG_NAME, like a projector view, so their joins broadcast nothing.
+// Each mode and count runs in its own JVM so threads and heap don't carry over; the synthetic
+// clients are on virtual threads in every run, so the difference is the server's.
+//   java -cp out LoadTest                      (blocking, virtual and nio at 100, 1000 and 5000)
+//   java -cp out LoadTest <mode> <clients>     (one run)
+public class LoadTest {
+    static final int PROBES = 20;
+    static final int PROBE_COLOR = 0xFF7F0000; // Low 16 bits are the probe number
+    static final int DRAW_COLOR = 0xFF000000;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 2) {
+            run(StudioManager.IoMode.valueOf(args[0].toUpperCase()), Integer.parseInt(args[1]));
+            return;
+        }
+        String java = ProcessHandle.current().info().command().orElse("java");
+        for (int clients : new int[] { 100, 1000, 5000 }) {
+            for (String mode : new String[] { "blocking", "virtual", "nio" }) {
+                Process p = new ProcessBuilder(java, "-Xmx1g", "-cp", System.getProperty("java.class.path"), "LoadTest", mode, String.valueOf(clients))
+                        .inheritIO().start();
+                if (!p.waitFor(5, TimeUnit.MINUTES)) {
+                    p.destroyForcibly();
+                    System.out.printf("%-8s %5d clients: timed out%n", mode, clients);
+                }
+            }
+        }
+    }
+
+    static void run(StudioManager.IoMode mode, int clients) throws Exception {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) { port = probe.getLocalPort(); }
+        StudioManager manager = new StudioManager(port, mode);
+        manager.host("load", 256, false);
+        Thread accept = new Thread(manager, "accept");
+        accept.setDaemon(true);
+        accept.start();
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        int baseThreads = threads.getThreadCount();
+        long t0 = System.nanoTime();
+        CountDownLatch[] seen = new CountDownLatch[PROBES + 1]; // [0] is the warm-up
+        for (int i = 0; i < seen.length; i++) seen[i] = new CountDownLatch(clients);
+        AtomicInteger dropped = new AtomicInteger(), resyncs = new AtomicInteger();
+        for (int i = 0; i < clients; i++) {
+            Socket s = new Socket("127.0.0.1", port);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+            out.write(Protocol.MSG_FEATURES);
+            out.writeInt(Protocol.FEATURE_COMPACT_PIXELS | Protocol.FEATURE_COMPACT_SNAPSHOT);
+            out.write(Protocol.MSG_SELECT_STUDIO);
+            out.writeUTF("load");
+            out.flush();
+            Thread.ofVirtual().start(() -> spectate(s, seen, dropped, resyncs));
+        }
+
+        Drawer drawer = new Drawer(port);
+        // Warm-up: once everyone has it, everyone is in the studio. Joins are handed to the studio by
+        // whichever I/O thread read them, so a few may land after the first one; it is resent until then.
+        long joinDeadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(2);
+        do {
+            if (System.nanoTime() > joinDeadline) throw new IllegalStateException("Spectators never joined: " + seen[0].getCount() + " missing, " + dropped.get() + " dropped");
+            drawer.send(PROBE_COLOR, 0);
+        } while (!seen[0].await(500, TimeUnit.MILLISECONDS));
+        long connected = System.nanoTime() - t0;
+
+        Thread load = Thread.ofPlatform().daemon().start(() -> {
+            try {
+                for (int i = 0; ; i++) {
+                    drawer.send(DRAW_COLOR | (i & 0xFFFF), 1 + i % 200);
+                    Thread.sleep(50);
+                }
+            } catch (IOException | InterruptedException e) {}
+        });
+
+        long[] fanOut = new long[PROBES];
+        for (int p = 1; p <= PROBES; p++) {
+            Thread.sleep(100);
+            long sent = System.nanoTime();
+            drawer.send(PROBE_COLOR | p, 0);
+            if (!seen[p].await(1, TimeUnit.MINUTES)) {
+                System.out.printf("%-8s %5d clients: probe %d still missing at %d spectators after a minute (%d dropped)%n",
+                        mode.name().toLowerCase(), clients, p, seen[p].getCount(), dropped.get());
+                System.exit(1);
+            }
+            fanOut[p - 1] = System.nanoTime() - sent;
+        }
+        Arrays.sort(fanOut);
+
+        System.gc();
+        long heap = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+        System.out.printf("%-8s %5d clients: joined in %6.0f ms, fan-out p50 %7.1f ms, p99 %7.1f ms, +%5d threads (peak %5d), heap %5.0f MB, RSS %s%s%n",
+                mode.name().toLowerCase(), clients, connected / 1e6, fanOut[PROBES / 2] / 1e6, fanOut[PROBES * 99 / 100] / 1e6,
+                threads.getThreadCount() - baseThreads, threads.getPeakThreadCount(), heap / 1048576.0, rss(),
+                (dropped.get() > 0 ? ", " + dropped.get() + " spectators dropped" : "") + (resyncs.get() > 0 ? ", " + resyncs.get() + " resyncs" : ""));
+        load.interrupt();
+        System.exit(0);
+    }
+
+    // Reads everything a spectator gets, counting each probe once it arrives. A spectator that fell
+    // behind may get a merged batch or a snapshot instead, which also covers the probes before it.
+    static void spectate(Socket s, CountDownLatch[] seen, AtomicInteger dropped, AtomicInteger resyncs) {
+        PixelBatch batch = new PixelBatch();
+        int probe = -1; // Last probe counted
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()))) {
+            while (true) {
+                int type = in.read();
+                switch (type) {
+                    case Protocol.MSG_FEATURES:
+                        in.readInt();
+                        break;
+                    case Protocol.MSG_CHAT:
+                        in.readUTF();
+                        break;
+                    case Protocol.MSG_LOBBY_UPDATE:
+                        int n = in.readInt();
+                        for (int i = 0; i < n; i++) {
+                            in.readUTF();
+                            in.readBoolean();
+                        }
+                        break;
+                    case Protocol.MSG_PIXELS_COMPACT:
+                        PixelCodec.readCompact(in, batch);
+                        if ((batch.color & 0xFFFF0000) == PROBE_COLOR) probe = seen(seen, probe, batch.color & 0xFFFF);
+                        break;
+                    case Protocol.MSG_FULL_SKETCH_COMPACT:
+                        resyncs.incrementAndGet();
+                        int color = SnapshotCodec.read(in, null).get(10, 0);
+                        if ((color & 0xFFFF0000) == PROBE_COLOR) probe = seen(seen, probe, color & 0xFFFF);
+                        break;
+                    default:
+                        throw new IOException("Unexpected message " + type);
+                }
+            }
+        } catch (IOException e) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    private static int seen(CountDownLatch[] seen, int last, int probe) {
+        for (int p = last + 1; p <= probe; p++) seen[p].countDown();
+        return Math.max(last, probe);
+    }
+
+    // A named client that draws short horizontal lines
+    static class Drawer {
+        final DataOutputStream out;
+        final PixelBatch batch = new PixelBatch();
+
+        Drawer(int port) throws IOException {
+            Socket s = new Socket("127.0.0.1", port);
+            out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+            out.write(Protocol.MSG_FEATURES);
+            out.writeInt(Protocol.FEATURE_COMPACT_PIXELS);
+            out.write(Protocol.MSG_SELECT_STUDIO);
+            out.writeUTF("load");
+            out.write(Protocol.MSG_NAME);
+            out.writeUTF("drawer");
+            out.flush();
+            // What the drawer is sent back is just discarded
+            Thread.ofVirtual().start(() -> {
+                try { s.getInputStream().transferTo(OutputStream.nullOutputStream()); } catch (IOException e) {}
+            });
+        }
+
+        synchronized void send(int color, int y) throws IOException {
+            batch.reset(color);
+            batch.addSpan(10, y, 20);
+            out.write(Protocol.MSG_PIXELS_COMPACT);
+            PixelCodec.writeCompact(out, batch);
+            out.flush();
+        }
+    }
+
+    static String rss() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status")))
+                if (line.startsWith("VmRSS:")) return String.format("%.0f MB", Long.parseLong(line.replaceAll("\\D", "")) / 1024.0);
+        } catch (IOException | RuntimeException e) {}
+        return "n/a";
+    }
+}
@@ -0,0 +1,271 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.zip.DeflaterOutputStream;
+
+// Snapshot bodies with lying lengths and counts, as a client could send in MSG_REPLACE_CANVAS.
+// Each must be rejected with an IOException, both as a frame body and read off a legacy stream,
+// without allocating what it declares. A canvas bigger than the studio's must be clipped to it,
+// and a tile left short by its runs must not keep pixels of the one before. Then the worst body
+// is sent to a server in every I/O mode, which must drop just that connection and keep serving
+// the others. Fails the run otherwise.
+//   java -Xmx256m -cp out MalformedSnapshotCheck
+public class MalformedSnapshotCheck {
+    interface Body { void write(DataOutputStream out) throws IOException; }
+
+    static boolean ok = true;
+
+    public static void main(String[] args) throws Exception {
+        // Header and palette, shared by both layouts
+        for (boolean tiles : new boolean[] { true, false }) {
+            check("length far beyond the message", tiles, message(0x7FFFFFF0, 64, 0, out -> {}));
+            check("length below the header", tiles, message(3, 64, 0, out -> {}));
+            check("negative length", tiles, message(-5, 64, 0, out -> {}));
+            check("empty body", tiles, message(-1, 64, 0, out -> {}));
+            check("palette larger than the body", tiles, message(-1, 64, 0, out -> varint(out, 0x7FFFFFFF)));
+            check("deflated palette larger than the canvas", tiles, message(-1, 64, SnapshotCodec.FLAG_DEFLATE, out -> varint(out, 0x7FFFFFFF)));
+            check("deflated palette that never arrives", tiles, message(-1, 64, SnapshotCodec.FLAG_DEFLATE, out -> varint(out, 4096)));
+            check("canvas too big", tiles, message(-1, tiles ? SketchFile.MAX_SIZE + 1 : -64, 0, out -> varint(out, 0)));
+        }
+
+        // MSG_TILES runs
+        check("palette index out of range", true, message(-1, 64, 0, out -> {
+            varint(out, 1);
+            out.writeInt(0xFF000000);
+            varint(out, 1); // One tile
+            varint(out, 0);
+            varint(out, 1); // One run
+            varint(out, 7);
+            varint(out, 10);
+        }));
+        check("negative run length", true, message(-1, 64, 0, out -> {
+            varint(out, 1);
+            out.writeInt(0xFF000000);
+            varint(out, 1);
+            varint(out, 0);
+            varint(out, 1);
+            varint(out, 0);
+            varint(out, -1);
+        }));
+        check("more tiles than the canvas has", true, message(-1, 64, 0, out -> {
+            varint(out, 0);
+            varint(out, 0x7FFFFFFF);
+        }));
+        check("more runs than a tile has cells", true, message(-1, 64, 0, out -> {
+            varint(out, 0);
+            varint(out, 1);
+            varint(out, 0);
+            varint(out, 0x7FFFFFFF);
+        }));
+
+        // MSG_FULL_SKETCH_COMPACT runs
+        check("palette index out of range", false, message(-1, 64, 0, out -> {
+            varint(out, 1);
+            out.writeInt(0xFF000000);
+            varint(out, 1); // One run
+            varint(out, 7);
+            varint(out, 10);
+        }));
+        check("negative run length", false, message(-1, 64, 0, out -> {
+            varint(out, 1);
+            out.writeInt(0xFF000000);
+            varint(out, 1);
+            varint(out, 0);
+            varint(out, -1);
+        }));
+        check("more runs than the canvas has pixels", false, message(-1, 64, 0, out -> {
+            varint(out, 0);
+            varint(out, 64 * 64 + 1);
+        }));
+
+        // Well formed, but must not decode as the sender says
+        int far = (SketchFile.MAX_SIZE / TiledCanvas.TILE) * (SketchFile.MAX_SIZE / TiledCanvas.TILE) - 1;
+        byte[] huge = message(-1, SketchFile.MAX_SIZE, 0, out -> {
+            varint(out, 1);
+            out.writeInt(0xFF000000);
+            varint(out, 2);
+            for (int t : new int[] { 0, far }) {
+                varint(out, t);
+                varint(out, 1);
+                varint(out, 0);
+                varint(out, TiledCanvas.TILE * TiledCanvas.TILE);
+            }
+        });
+        TiledCanvas clipped = SnapshotCodec.readTiles(new DataInputStream(new ByteArrayInputStream(huge)), SketchFile.MAX_SIZE, 64);
+        expect("canvas bigger than the studio", "clipped to it",
+                clipped.size() == 64 && clipped.get(0, 0) == 0xFF000000 && clipped.isTileBlank(clipped.tileCount() - 1));
+        byte[] shortTile = message(-1, 64, 0, out -> {
+            varint(out, 2);
+            out.writeInt(0xFF000000);
+            out.writeInt(0xFFFF0000);
+            varint(out, 2);
+            varint(out, 0); // A full tile
+            varint(out, 1);
+            varint(out, 0);
+            varint(out, TiledCanvas.TILE * TiledCanvas.TILE);
+            varint(out, 1); // Then one that only paints its first row
+            varint(out, 1);
+            varint(out, 1);
+            varint(out, TiledCanvas.TILE);
+        });
+        TiledCanvas padded = SnapshotCodec.readTiles(new DataInputStream(new ByteArrayInputStream(shortTile)), SketchFile.MAX_SIZE, 64);
+        expect("tile with runs short of its cells", "rest left blank",
+                padded.get(TiledCanvas.TILE, 0) == 0xFFFF0000 && padded.get(TiledCanvas.TILE, 1) == 0);
+
+        for (StudioManager.IoMode mode : StudioManager.IoMode.values()) server(mode);
+        if (!ok) {
+            System.out.println("A malformed snapshot got past the decoder");
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    // The body after the type byte; byteLength -1 stands for the true length
+    static byte[] message(int byteLength, int size, int flags, Body body) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream raw = new DataOutputStream((flags & SnapshotCodec.FLAG_DEFLATE) != 0 ? new DeflaterOutputStream(payload) : payload);
+        body.write(raw);
+        raw.close();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(byteLength == -1 ? 5 + payload.size() : byteLength);
+        out.writeInt(size);
+        out.writeByte(flags);
+        payload.writeTo(out);
+        return bytes.toByteArray();
+    }
+
+    static void varint(DataOutputStream out, int v) throws IOException {
+        PixelCodec.writeVarint(out, v);
+    }
+
+    // As MSG_TILES (what MSG_REPLACE_CANVAS carries) or MSG_FULL_SKETCH_COMPACT, from a frame and off a stream
+    static void check(String name, boolean tiles, byte[] body) {
+        String layout = tiles ? "tiles" : "full";
+        if (tiles) {
+            report(name + ", " + layout + ", framed", () -> SnapshotCodec.readTiles(new Protocol.Body().of(body, 0, body.length), SketchFile.MAX_SIZE, SketchFile.MAX_SIZE));
+            report(name + ", " + layout + ", legacy", () -> SnapshotCodec.readTiles(new DataInputStream(new ByteArrayInputStream(body)), SketchFile.MAX_SIZE, SketchFile.MAX_SIZE));
+        } else {
+            report(name + ", " + layout + ", framed", () -> SnapshotCodec.read(new Protocol.Body().of(body, 0, body.length), null));
+            report(name + ", " + layout + ", legacy", () -> SnapshotCodec.read(new DataInputStream(new ByteArrayInputStream(body)), null));
+        }
+    }
+
+    interface Decode { void run() throws IOException; }
+
+    static void report(String name, Decode decode) {
+        String outcome;
+        try {
+            decode.run();
+            outcome = "accepted  <-- should be rejected";
+            ok = false;
+        } catch (IOException e) {
+            outcome = "rejected: " + e.getMessage();
+        } catch (Throwable e) {
+            outcome = e + "  <-- should be an IOException";
+            ok = false;
+        }
+        System.out.printf("%-58s %s%n", name, outcome);
+    }
+
+    static void expect(String name, String outcome, boolean pass) {
+        System.out.printf("%-58s %s%n", name, pass ? outcome : "not " + outcome + "  <-- broken");
+        ok &= pass;
+    }
+
+    // A watcher joins, an attacker sends the 9 byte MSG_REPLACE_CANVAS that declares 2 GB, and
+    // the watcher must still get what a drawer draws afterwards. One NIO loop, so all share it.
+    static void server(StudioManager.IoMode mode) throws Exception {
+        System.setProperty("kidpaint.nioThreads", "1");
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) { port = probe.getLocalPort(); }
+        StudioManager manager = new StudioManager(port, mode);
+        manager.host("check", 64, false);
+        Thread accept = new Thread(manager, "accept");
+        accept.setDaemon(true);
+        accept.start();
+
+        Socket watcher = join(port, "watcher");
+        Socket attacker = join(port, "attacker");
+        DataOutputStream out = new DataOutputStream(attacker.getOutputStream());
+        out.write(Protocol.MSG_REPLACE_CANVAS);
+        out.write(message(0x7FFFFFF0, 64, 0, o -> {}));
+        out.flush();
+        Thread.sleep(200);
+
+        Socket drawer = join(port, "drawer");
+        DataOutputStream draw = new DataOutputStream(drawer.getOutputStream());
+        PixelBatch batch = new PixelBatch();
+        batch.reset(0xFF123456);
+        batch.addSpan(1, 1, 3);
+        draw.write(Protocol.MSG_PIXELS_COMPACT);
+        PixelCodec.writeCompact(draw, batch);
+        draw.flush();
+
+        boolean served = false;
+        watcher.setSoTimeout(5000);
+        DataInputStream in = new DataInputStream(watcher.getInputStream());
+        try {
+            while (!served) {
+                int type = in.read();
+                if (type < 0) break;
+                switch (type) {
+                    case Protocol.MSG_FEATURES -> in.readInt();
+                    case Protocol.MSG_CHAT -> in.readUTF();
+                    case Protocol.MSG_MODE -> in.readBoolean();
+                    case Protocol.MSG_FULL_SKETCH_COMPACT -> SnapshotCodec.read(in, null);
+                    case Protocol.MSG_LOBBY_UPDATE -> {
+                        for (int n = in.readInt(); n > 0; n--) {
+                            in.readUTF();
+                            in.readBoolean();
+                        }
+                    }
+                    case Protocol.MSG_PIXELS_COMPACT -> {
+                        PixelCodec.readCompact(in, batch);
+                        served = batch.color == 0xFF123456;
+                    }
+                    default -> throw new IOException("Unexpected message " + type);
+                }
+            }
+        } catch (SocketTimeoutException e) {}
+        attacker.setSoTimeout(5000);
+        boolean dropped = readsEof(attacker.getInputStream());
+        System.out.printf("%-58s %s%n", "server, " + mode.name().toLowerCase() + " I/O",
+                served && dropped ? "attacker dropped, others still served" : (served ? "" : "others no longer served ") + (dropped ? "" : "attacker not dropped") + "  <-- broken");
+        ok &= served && dropped;
+        watcher.close();
+        attacker.close();
+        drawer.close();
+    }
+
+    static Socket join(int port, String name) throws IOException {
+        Socket s = new Socket("127.0.0.1", port);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+        out.write(Protocol.MSG_FEATURES);
+        out.writeInt(Protocol.FEATURE_COMPACT_PIXELS | Protocol.FEATURE_COMPACT_SNAPSHOT);
+        out.write(Protocol.MSG_SELECT_STUDIO);
+        out.writeUTF("check");
+        out.write(Protocol.MSG_NAME);
+        out.writeUTF(name);
+        out.flush();
+        return s;
+    }
+
+    static boolean readsEof(InputStream in) throws IOException {
+        try {
+            while (in.read() >= 0) {}
+            return true;
+        } catch (SocketTimeoutException e) {
+            return false;
+        } catch (IOException e) {
+            return true; // Reset
+        }
+    }
+}
@@ -0,0 +1,93 @@
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Random;
+
+// Compares the legacy MSG_PIXELS layout with MSG_PIXELS_COMPACT: bytes on the wire
+// and encode/decode time for typical batches.
+//   java -cp out PixelCodecBenchmark
+public class PixelCodecBenchmark {
+    public static void main(String[] args) throws IOException {
+        Random rnd = new Random(42);
+        run("pen stroke, 300 points / 500px", stroke(rnd, 300, 500));
+        run("bucket fill, r=200 disk / 500px", disk(250, 250, 200));
+        run("full fill 50x50", square(50));
+        run("sketch load, 1 of 8 colours / 2000px", noise(rnd, 2000, 8));
+    }
+
+    static void run(String name, PixelBatch batch) throws IOException {
+        byte[] legacy = encode(batch, false);
+        byte[] compact = encode(batch, true);
+        long legacyEnc = time(() -> encode(batch, false));
+        long compactEnc = time(() -> encode(batch, true));
+        PixelBatch into = new PixelBatch();
+        long legacyDec = time(() -> { PixelCodec.readLegacy(new DataInputStream(new ByteArrayInputStream(legacy)), into); return null; });
+        long compactDec = time(() -> { PixelCodec.readCompact(new DataInputStream(new ByteArrayInputStream(compact)), into); return null; });
+
+        System.out.printf("%s (%d pixels, %d runs)%n", name, batch.pixelCount(), batch.runCount);
+        System.out.printf("  legacy : %10d bytes  encode %8.1f us  decode %8.1f us%n", legacy.length, legacyEnc / 1e3, legacyDec / 1e3);
+        System.out.printf("  compact: %10d bytes  encode %8.1f us  decode %8.1f us  (%.1fx smaller)%n",
+                compact.length, compactEnc / 1e3, compactDec / 1e3, (double) legacy.length / compact.length);
+    }
+
+    static byte[] encode(PixelBatch batch, boolean compact) throws IOException {
+        FrameBuffer fb = FrameBuffer.acquire(compact ? Protocol.MSG_PIXELS_COMPACT : Protocol.MSG_PIXELS);
+        if (compact) PixelCodec.writeCompact(fb, batch);
+        else PixelCodec.writeLegacy(fb, batch);
+        byte[] data = fb.toByteArray();
+        return java.util.Arrays.copyOfRange(data, 1, data.length); // Drop the type byte
+    }
+
+    interface Op { Object run() throws IOException; }
+
+    // Median nanoseconds per call after warm-up
+    static long time(Op op) throws IOException {
+        for (int i = 0; i < 200; i++) op.run();
+        long[] samples = new long[51];
+        for (int s = 0; s < samples.length; s++) {
+            long t0 = System.nanoTime();
+            op.run();
+            samples[s] = System.nanoTime() - t0;
+        }
+        java.util.Arrays.sort(samples);
+        return samples[samples.length / 2];
+    }
+
+    static PixelBatch stroke(Random rnd, int points, int size) {
+        PixelBatch b = new PixelBatch();
+        b.reset(0xFF000000);
+        int x = size / 2, y = size / 2;
+        for (int i = 0; i < points; i++) {
+            x = Math.floorMod(x + rnd.nextInt(3) - 1, size);
+            y = Math.floorMod(y + rnd.nextInt(3) - 1, size);
+            b.add(x, y);
+        }
+        return b;
+    }
+
+    static PixelBatch disk(int cx, int cy, int r) {
+        PixelBatch b = new PixelBatch();
+        b.reset(0xFFFF0000);
+        for (int y = cy - r; y <= cy + r; y++)
+            for (int x = cx - r; x <= cx + r; x++)
+                if ((x - cx) * (x - cx) + (y - cy) * (y - cy) <= r * r && x >= 0 && y >= 0) b.add(x, y);
+        return b;
+    }
+
+    static PixelBatch square(int size) {
+        PixelBatch b = new PixelBatch();
+        b.reset(0xFF0000FF);
+        for (int y = 0; y < size; y++)
+            for (int x = 0; x < size; x++) b.add(x, y);
+        return b;
+    }
+
+    static PixelBatch noise(Random rnd, int size, int colors) {
+        PixelBatch b = new PixelBatch();
+        b.reset(0xFF00FF00);
+        for (int x = 0; x < size; x++)
+            for (int y = 0; y < size; y++)
+                if (rnd.nextInt(colors) == 0) b.add(x, y);
+        return b;
+    }
+}
@@ -0,0 +1,108 @@
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import javax.imageio.ImageIO;
+
+// PNG export/import of a painted canvas: PngCodec streaming rows against copying the canvas
+// into a BufferedImage for ImageIO. Reports time, bytes allocated and the heap's peak above
+// what was in use before (after a GC), which shows the full-size copies.
+//   java -cp out PngBenchmark [size]
+public class PngBenchmark {
+    static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    interface Task { void run() throws IOException; }
+
+    public static void main(String[] args) throws IOException {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 4096;
+        TiledCanvas canvas = paint(size);
+        Path streamed = Files.createTempFile("kidpaint", ".png"), imageIo = Files.createTempFile("kidpaint", ".png");
+        try {
+            for (int round = 0; round < 2; round++) { // The first round includes warm-up
+                System.out.println(size + "x" + size + (round == 0 ? " (cold)" : ""));
+                measure("PngCodec export", () -> {
+                    try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(streamed), 1 << 16)) {
+                        PngCodec.write(out, canvas);
+                    }
+                }, streamed);
+                measure("BufferedImage + ImageIO export", () -> {
+                    BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+                    int[] row = new int[size];
+                    for (int y = 0; y < size; y++) {
+                        canvas.copyRow(y, row);
+                        image.setRGB(0, y, size, 1, row, 0, size);
+                    }
+                    ImageIO.write(image, "png", imageIo.toFile());
+                }, imageIo);
+                measure("PngCodec import", () -> {
+                    try (InputStream in = new BufferedInputStream(Files.newInputStream(streamed), 1 << 16)) {
+                        PngCodec.read(in, size);
+                    }
+                }, null);
+                measure("PngCodec import, scaled to half", () -> {
+                    try (InputStream in = new BufferedInputStream(Files.newInputStream(streamed), 1 << 16)) {
+                        PngCodec.read(in, size / 2);
+                    }
+                }, null);
+            }
+        } finally {
+            Files.deleteIfExists(streamed);
+            Files.deleteIfExists(imageIo);
+        }
+    }
+
+    static void measure(String name, Task task, Path output) throws IOException {
+        System.gc();
+        long before = heapUsed();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) pool.resetPeakUsage();
+        long a0 = allocated(), t0 = System.nanoTime();
+        task.run();
+        long t1 = System.nanoTime(), a1 = allocated();
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            if (pool.getType() == MemoryType.HEAP) peak += pool.getPeakUsage().getUsed();
+        System.out.printf("  %-34s %8.1f ms %9.1f MB allocated, peak heap +%7.1f MB%s%n", name, (t1 - t0) / 1e6,
+                (a1 - a0) / 1e6, Math.max(0, peak - before) / 1e6,
+                output == null ? "" : String.format(", %.1f MB file", new File(output.toString()).length() / 1e6));
+    }
+
+    static long heapUsed() {
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            if (pool.getType() == MemoryType.HEAP) used += pool.getUsage().getUsed();
+        return used;
+    }
+
+    static long allocated() {
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().threadId());
+    }
+
+    // Strokes in a few colours over most of the canvas, like a busy shared drawing
+    static TiledCanvas paint(int size) {
+        TiledCanvas canvas = new TiledCanvas(size);
+        Random random = new Random(1);
+        int[] colors = { 0xFF000000, 0xFFE74C3C, 0xFF3498DB, 0xFF2ECC71, 0xFFF1C40F, 0xFF9B59B6 };
+        Stroke stroke = new Stroke();
+        PixelBatch spans = new PixelBatch();
+        for (int i = 0; i < size * 4; i++) {
+            stroke.reset(colors[random.nextInt(colors.length)], random.nextInt(6));
+            int x = random.nextInt(size), y = random.nextInt(size);
+            stroke.add(x, y);
+            for (int p = 0; p < 10; p++) stroke.add(x += random.nextInt(81) - 40, y += random.nextInt(81) - 40);
+            stroke.clampTo(size);
+            stroke.rasterize(size, spans);
+            for (int r = 0; r < spans.runCount; r++) canvas.fillSpan(spans.x(r), spans.y(r), spans.length(r), spans.color);
+        }
+        return canvas;
+    }
+}
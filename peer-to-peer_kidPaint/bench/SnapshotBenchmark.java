@@ -0,0 +1,48 @@
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Random;
+
+// Bytes and time to build and decode the snapshot a joining client receives:
+// legacy MSG_FULL_SKETCH (4 bytes per pixel) vs MSG_FULL_SKETCH_COMPACT.
+//   java -cp out SnapshotBenchmark
+public class SnapshotBenchmark {
+    public static void main(String[] args) throws IOException {
+        for (int size : new int[] { 50, 500, 2000, 4000 }) {
+            run(size + "px blank", new TiledCanvas(size));
+            run(size + "px sketched", sketch(size, new Random(7)));
+        }
+    }
+
+    static void run(String name, TiledCanvas grid) throws IOException {
+        int size = grid.size();
+        for (int i = 0; i < 3; i++) encode(grid); // warm-up
+        long t0 = System.nanoTime();
+        byte[] data = encode(grid);
+        long t1 = System.nanoTime();
+        SnapshotCodec.read(new DataInputStream(new ByteArrayInputStream(data, 1, data.length - 1)), null);
+        long t2 = System.nanoTime();
+        long legacy = 1 + 4 + 4L * size * size;
+        System.out.printf("%-16s legacy %11d bytes | compact %9d bytes (%7.0fx)  encode %7.1f ms  decode %7.1f ms%n",
+                name, legacy, data.length, (double) legacy / data.length, (t1 - t0) / 1e6, (t2 - t1) / 1e6);
+    }
+
+    static byte[] encode(TiledCanvas grid) throws IOException {
+        FrameBuffer fb = FrameBuffer.acquire(Protocol.MSG_FULL_SKETCH_COMPACT);
+        SnapshotCodec.write(fb, grid);
+        return fb.toByteArray();
+    }
+
+    // A few hundred strokes and filled blocks in a small set of colours
+    static TiledCanvas sketch(int size, Random rnd) {
+        TiledCanvas g = new TiledCanvas(size);
+        int[] colors = { 0xFF000000, 0xFFE74C3C, 0xFF3498DB, 0xFF2ECC71, 0xFFF1C40F };
+        for (int k = 0; k < 300; k++) {
+            int c = colors[rnd.nextInt(colors.length)];
+            int x = rnd.nextInt(size), y = rnd.nextInt(size), w = 1 + rnd.nextInt(size / 10 + 1);
+            for (int j = y; j < Math.min(size, y + (k % 3 == 0 ? w : 2)); j++)
+                g.fillSpan(x, j, Math.min(size, x + w) - x, c);
+        }
+        return g;
+    }
+}
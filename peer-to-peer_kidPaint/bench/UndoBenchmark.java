@@ -0,0 +1,74 @@
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+// Memory and undo latency of OpLog with many editors drawing at once: every editor draws
+// interleaved strokes (plus the odd bucket fill), then each undoes its last few edits.
+// Compared with what a full canvas snapshot per edit would have needed.
+//   java -cp out UndoBenchmark
+public class UndoBenchmark {
+    public static void main(String[] args) {
+        for (int editors : new int[] { 4, 32, 128 }) run(1000, editors, 200, OpLog.DEFAULT_BUDGET);
+        run(1000, 32, 2000, 4L * 1024 * 1024); // Over budget: the oldest edits are evicted
+    }
+
+    static void run(int size, int editors, int strokesEach, long budget) {
+        Random random = new Random(editors);
+        TiledCanvas canvas = new TiledCanvas(size);
+        OpLog log = new OpLog(canvas, budget);
+        FloodFill fill = new FloodFill();
+        Stroke stroke = new Stroke();
+        PixelBatch spans = new PixelBatch();
+        long painted = 0;
+
+        long t0 = System.nanoTime();
+        for (int i = 0; i < editors * strokesEach; i++) {
+            String user = "user" + (i % editors);
+            int color = 0xFF000000 | random.nextInt(0xFFFFFF);
+            if (random.nextInt(50) == 0) {
+                PixelBatch region = fill.fill(canvas, random.nextInt(size), random.nextInt(size), color, new PixelBatch());
+                painted += region.pixelCount();
+                log.paint(user, region);
+                continue;
+            }
+            // A stroke arrives as several pieces, like MSG_STROKE_EXTEND
+            stroke.reset(color, random.nextInt(5));
+            int x = random.nextInt(size), y = random.nextInt(size);
+            stroke.add(x, y);
+            OpLog.Op op = null;
+            for (int piece = 0; piece < 5; piece++) {
+                for (int p = 0; p < 4; p++) {
+                    x = Math.max(0, Math.min(size - 1, x + random.nextInt(41) - 20));
+                    y = Math.max(0, Math.min(size - 1, y + random.nextInt(41) - 20));
+                    stroke.add(x, y);
+                }
+                stroke.rasterize(size, spans);
+                painted += spans.pixelCount();
+                if (op == null || !log.extend(op, spans)) op = log.paint(user, spans);
+                stroke.keepLast();
+            }
+        }
+        long t1 = System.nanoTime();
+
+        long[] undoNanos = new long[editors * 3];
+        long restored = 0;
+        int n = 0;
+        for (int round = 0; round < 3; round++) {
+            for (int e = 0; e < editors; e++) {
+                long s = System.nanoTime();
+                List<PixelBatch> changed = log.undo("user" + e);
+                undoNanos[n++] = System.nanoTime() - s;
+                for (PixelBatch b : changed) restored += b.pixelCount();
+            }
+        }
+        Arrays.sort(undoNanos);
+
+        int edits = editors * strokesEach;
+        System.out.printf("%4d editors x %4d edits: record %6.1f ms (%.1f Mpx), log %7.1f KB (%,d ops kept, %5.1f B each; a snapshot per edit would be %,d MB)%n",
+                editors, strokesEach, (t1 - t0) / 1e6, painted / 1e6, log.bytes() / 1024.0, log.size(), (double) log.bytes() / Math.max(1, log.size()),
+                (long) edits * size * size * 4 / (1024 * 1024));
+        System.out.printf("%34s undo p50 %.3f ms, p99 %.3f ms, max %.3f ms, %.0f px restored per undo%n", "",
+                undoNanos[n / 2] / 1e6, undoNanos[n * 99 / 100] / 1e6, undoNanos[n - 1] / 1e6, (double) restored / n);
+        System.out.printf("%34s %s%n", "", log.report());
+    }
+}
@@ -0,0 +1,247 @@
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.PixelWriter;
+import javafx.scene.image.WritableImage;
+import javafx.scene.paint.Color;
+
+import java.nio.IntBuffer;
+
+// Draws a TiledCanvas onto the JavaFX Canvas. A WritableImage mirrors the tiles currently in
+// view one image pixel per canvas pixel; each pulse copies only the tiles whose dirty bit is
+// set into it with one bulk setPixels per tile, then draws it scaled up without smoothing.
+// Pulses where no tile changed and neither the window nor the view moved draw nothing at all.
+//
+// The view starts out fitting the whole canvas, or at one screen pixel per canvas pixel when
+// the canvas is bigger than the window, and can be zoomed and panned from there. The image
+// only ever covers the visible tiles, so a huge canvas costs what the window shows.
+public class CanvasRenderer {
+    private static final int WHITE = 0xFFFFFFFF;
+    private static final double MAX_PIXEL = 64; // Screen pixels per canvas pixel at the closest zoom
+
+    private final Canvas canvas;
+    private TiledCanvas source;
+    private WritableImage image;
+    private int imageX0, imageY0, imageX1, imageY1; // Canvas pixels the image holds: whole tiles, ends exclusive
+    private final int[] tile = new int[TiledCanvas.TILE * TiledCanvas.TILE];
+    private double drawnWidth = -1, drawnHeight = -1;
+    private double laidWidth, laidHeight; // Window size the view was last fitted to
+
+    // Screen position of canvas pixel (0, 0), and screen pixels per canvas pixel; 0 until the first pulse
+    private double originX, originY, scale;
+    private boolean fitted = true; // At the farthest zoom, which follows the window as it resizes
+    private boolean moved;
+
+    // Overview shown in the minimap (FX thread)
+    private TiledCanvas overviewSource;
+    private WritableImage overviewImage;
+    private boolean minimapDrawn;
+
+    public CanvasRenderer(Canvas canvas) {
+        this.canvas = canvas;
+    }
+
+    // Called on the FX thread every pulse
+    public void render(TiledCanvas grid) {
+        if (grid == null) return;
+        if (grid != source) {
+            if (source == null || source.size() != grid.size()) scale = 0;
+            source = grid;
+            image = null;
+        }
+        double w = canvas.getWidth(), h = canvas.getHeight();
+        if (scale <= 0 || w != laidWidth || h != laidHeight) layout(w, h);
+        if (scale <= 0) return;
+
+        int x0 = visibleX0(), y0 = visibleY0(), x1 = visibleX1(), y1 = visibleY1();
+        if (x1 <= x0 || y1 <= y0) return;
+        boolean changed = cacheTiles(grid, x0, y0, x1, y1);
+        if (!changed && !moved && w == drawnWidth && h == drawnHeight) return;
+        drawnWidth = w;
+        drawnHeight = h;
+        moved = false;
+        minimapDrawn = false;
+
+        GraphicsContext gc = canvas.getGraphicsContext2D();
+        gc.clearRect(0, 0, w, h);
+        gc.setImageSmoothing(false);
+        gc.drawImage(image, x0 - imageX0, y0 - imageY0, x1 - x0, y1 - y0,
+                originX + x0 * scale, originY + y0 * scale, (x1 - x0) * scale, (y1 - y0) * scale);
+    }
+
+    // --- View ---
+
+    // Zooms by factor keeping the canvas pixel under screen point (mx, my) in place
+    public void zoom(double factor, double mx, double my) {
+        if (scale <= 0) return;
+        double next = Math.max(minScale(), Math.min(MAX_PIXEL, scale * factor));
+        originX = mx - (mx - originX) / scale * next;
+        originY = my - (my - originY) / scale * next;
+        scale = next;
+        fitted = next == minScale();
+        clamp();
+    }
+
+    public void pan(double dx, double dy) {
+        if (scale <= 0) return;
+        originX += dx;
+        originY += dy;
+        clamp();
+    }
+
+    // Centres the view on a canvas pixel, e.g. one picked on the minimap
+    public void centerOn(double cx, double cy) {
+        if (scale <= 0) return;
+        originX = canvas.getWidth() / 2 - cx * scale;
+        originY = canvas.getHeight() / 2 - cy * scale;
+        clamp();
+    }
+
+    // Canvas pixel under a screen point, or null off the canvas
+    public int[] toCanvas(double mx, double my) {
+        if (scale <= 0) return null;
+        int x = (int) Math.floor((mx - originX) / scale);
+        int y = (int) Math.floor((my - originY) / scale);
+        return source.contains(x, y) ? new int[] { x, y } : null;
+    }
+
+    // What is in view, in canvas pixels; ends exclusive
+    int visibleX0() { return Math.max(0, (int) Math.floor(-originX / scale)); }
+    int visibleY0() { return Math.max(0, (int) Math.floor(-originY / scale)); }
+    int visibleX1() { return Math.min(source.size(), (int) Math.ceil((canvas.getWidth() - originX) / scale)); }
+    int visibleY1() { return Math.min(source.size(), (int) Math.ceil((canvas.getHeight() - originY) / scale)); }
+
+    private double minScale() {
+        double fit = Math.floor(Math.min(canvas.getWidth(), canvas.getHeight())) / source.size();
+        return Math.min(MAX_PIXEL, Math.max(fit, 1));
+    }
+
+    private void layout(double w, double h) {
+        if (w <= 0 || h <= 0) return;
+        if (scale <= 0 || fitted) {
+            // Keep the middle of the view where it was
+            double cx = scale > 0 ? (laidWidth / 2 - originX) / scale : source.size() / 2.0;
+            double cy = scale > 0 ? (laidHeight / 2 - originY) / scale : source.size() / 2.0;
+            scale = minScale();
+            originX = w / 2 - cx * scale;
+            originY = h / 2 - cy * scale;
+        } else {
+            scale = Math.max(scale, minScale());
+        }
+        laidWidth = w;
+        laidHeight = h;
+        clamp();
+    }
+
+    // No scrolling past the edges; a canvas smaller than the window stays centred
+    private void clamp() {
+        double extent = source.size() * scale;
+        double w = canvas.getWidth(), h = canvas.getHeight();
+        originX = extent <= w ? Math.floor((w - extent) / 2) : Math.max(w - extent, Math.min(0, originX));
+        originY = extent <= h ? Math.floor((h - extent) / 2) : Math.max(h - extent, Math.min(0, originY));
+        moved = true;
+    }
+
+    // --- Image ---
+
+    // Brings the image up to date for the visible pixels. When the view crossed into other tiles
+    // every visible tile is copied; otherwise just the dirty ones. Dirty bits of tiles out of view
+    // are dropped, since they are copied anyway once they come into view.
+    private boolean cacheTiles(TiledCanvas grid, int x0, int y0, int x1, int y1) {
+        int tx0 = x0 & ~(TiledCanvas.TILE - 1), ty0 = y0 & ~(TiledCanvas.TILE - 1);
+        int tx1 = Math.min(grid.size(), (x1 + TiledCanvas.TILE - 1) & ~(TiledCanvas.TILE - 1));
+        int ty1 = Math.min(grid.size(), (y1 + TiledCanvas.TILE - 1) & ~(TiledCanvas.TILE - 1));
+        boolean all = image == null || tx0 != imageX0 || ty0 != imageY0 || tx1 != imageX1 || ty1 != imageY1;
+        if (all) {
+            if (image == null || image.getWidth() != tx1 - tx0 || image.getHeight() != ty1 - ty0)
+                image = new WritableImage(tx1 - tx0, ty1 - ty0);
+            imageX0 = tx0;
+            imageY0 = ty0;
+            imageX1 = tx1;
+            imageY1 = ty1;
+        }
+
+        boolean changed = false;
+        PixelWriter pw = image.getPixelWriter();
+        PixelFormat<IntBuffer> format = PixelFormat.getIntArgbPreInstance();
+        for (int w = 0; w < grid.dirtyWords(); w++) {
+            long bits = grid.takeDirtyWord(w);
+            if (all) continue;
+            while (bits != 0) {
+                int t = (w << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                if (!cached(grid, t)) continue;
+                copyTile(grid, t, pw, format);
+                changed = true;
+            }
+        }
+        if (all) {
+            for (int y = ty0; y < ty1; y += TiledCanvas.TILE)
+                for (int x = tx0; x < tx1; x += TiledCanvas.TILE) copyTile(grid, grid.tileIndex(x, y), pw, format);
+            changed = true;
+        }
+        return changed;
+    }
+
+    private boolean cached(TiledCanvas grid, int t) {
+        int x = grid.tileX(t), y = grid.tileY(t);
+        return x >= imageX0 && x < imageX1 && y >= imageY0 && y < imageY1;
+    }
+
+    private void copyTile(TiledCanvas grid, int t, PixelWriter pw, PixelFormat<IntBuffer> format) {
+        grid.readTile(t, tile);
+        // Blank pixels show as white paper, and colours are drawn opaque as before
+        for (int i = 0; i < tile.length; i++) tile[i] = tile[i] == 0 ? WHITE : tile[i] | 0xFF000000;
+        pw.setPixels(grid.tileX(t) - imageX0, grid.tileY(t) - imageY0, grid.tileWidth(t), grid.tileHeight(t),
+                format, tile, 0, TiledCanvas.TILE);
+    }
+
+    // Whether the tiles in view differ from 'last' (x0, y0, x1, y1 in canvas pixels), which is
+    // updated to them if so
+    public boolean viewChanged(int[] last) {
+        if (image == null) return false;
+        if (last[0] == imageX0 && last[1] == imageY0 && last[2] == imageX1 && last[3] == imageY1) return false;
+        last[0] = imageX0;
+        last[1] = imageY0;
+        last[2] = imageX1;
+        last[3] = imageY1;
+        return true;
+    }
+
+    // --- Minimap ---
+
+    // Whether the view leaves part of the canvas out, which is when the minimap is worth showing
+    public boolean partial() {
+        return scale > 0 && (visibleX0() > 0 || visibleY0() > 0 || visibleX1() < source.size() || visibleY1() < source.size());
+    }
+
+    // Draws the overview (the canvas shrunk by overviewScale, a new object each time it changes)
+    // with the view marked on it; does nothing when neither changed since the last call
+    public void renderMinimap(Canvas mini, TiledCanvas overview, int overviewScale) {
+        if (overview == null || scale <= 0) return;
+        if (overview != overviewSource) {
+            overviewSource = overview;
+            overviewImage = new WritableImage(overview.size(), overview.size());
+            PixelWriter pw = overviewImage.getPixelWriter();
+            int[] row = new int[overview.size()];
+            for (int y = 0; y < overview.size(); y++) {
+                overview.copyRow(y, row);
+                for (int i = 0; i < row.length; i++) row[i] = row[i] == 0 ? WHITE : row[i] | 0xFF000000;
+                pw.setPixels(0, y, row.length, 1, PixelFormat.getIntArgbPreInstance(), row, 0, row.length);
+            }
+            minimapDrawn = false;
+        }
+        if (minimapDrawn) return;
+        minimapDrawn = true;
+
+        double w = mini.getWidth(), h = mini.getHeight();
+        GraphicsContext gc = mini.getGraphicsContext2D();
+        gc.setImageSmoothing(false);
+        gc.drawImage(overviewImage, 0, 0, w, h);
+        double k = w / (overview.size() * overviewScale);
+        gc.setStroke(Color.RED);
+        gc.setLineWidth(1);
+        gc.strokeRect(visibleX0() * k + 0.5, visibleY0() * k + 0.5,
+                Math.max(1, (visibleX1() - visibleX0()) * k - 1), Math.max(1, (visibleY1() - visibleY0()) * k - 1));
+    }
+}
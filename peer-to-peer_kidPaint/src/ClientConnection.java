@@ -0,0 +1,179 @@
+import java.io.DataInputStream;
+import java.io.IOException;
+
+// One connected player, independent of how its socket is serviced (blocking
+// WorkerThread or NIO event loop). Decodes client messages and hands them to
+// the handlers of the studio it joined. Outgoing frames wait in a bounded OutboundQueue that
+// the transport drains on its own, never on the thread that produced them.
+public abstract class ClientConnection {
+    final StudioManager studios;
+    volatile PaintServerHost server; // Set once, when the connection joins a studio
+    private boolean turnedAway; // Asked for a studio that isn't hosted; ignore the rest
+    final OutboundQueue outbound = new OutboundQueue();
+    String username;
+    int features; // FEATURE_* bits agreed with this client
+    long sentVersion; // Canvas version of the last canvas frame written, i.e. what the client already has
+    // Studio loop only
+    final Stroke stroke = new Stroke(); // Stroke in progress, from the last point already drawn
+    boolean stroking;
+    OpLog.Op strokeOp; // Op the stroke in progress is logged as
+    int ackSeq; // Last drawSeq acknowledged
+    Viewport viewport; // What the client subscribed to with MSG_VIEWPORT; null for the whole canvas
+    // Reader thread only
+    boolean framesIn; // Messages from the client arrive as Protocol frames
+    int drawSeq; // Drawing messages received; the client numbers its predicted ops the same way
+    private int lastX, lastY; // Last stroke point received, which MSG_STROKE_EXTEND deltas start from
+    // Writer only
+    boolean framesOut; // Messages to the client go out as Protocol frames
+
+    ClientConnection(StudioManager studios) {
+        this.studios = studios;
+    }
+
+    public String getUsername() { return username; }
+    public void setUsername(String u) { this.username = u; }
+
+    // Queues a frame for this client without touching the socket
+    void send(Frame frame) {
+        if (outbound.offer(frame)) frameQueued();
+        else close(); // Slow consumer policy gave up on this client
+    }
+
+    // Lets the transport know the outbound queue is non-empty
+    abstract void frameQueued();
+
+    abstract void close();
+
+    // Called by the transport once the socket is gone
+    void disconnected() {
+        PaintServerHost s = server;
+        if (s != null) s.execute(() -> s.handleDisconnect(this));
+    }
+
+    // The frame to actually write for one taken from the queue; called by the writer only.
+    // A RESYNC is built here while the writer waits, so NIO writers build theirs without it.
+    Frame resolve(Frame frame) {
+        if (frame == Frame.RESYNC) frame = server.resync(this);
+        if (frame.canvasVersion > sentVersion) sentVersion = frame.canvasVersion;
+        return frame;
+    }
+
+    // Called by the writer after each message: the MSG_FEATURES reply that granted
+    // FEATURE_FRAMES is the last one written in the legacy layout
+    void written(byte[] data) {
+        if (data[0] == Protocol.MSG_FEATURES && (features & Protocol.FEATURE_FRAMES) != 0) framesOut = true;
+    }
+
+    static boolean isDrawing(int type) {
+        return type == Protocol.MSG_PIXELS || type == Protocol.MSG_PIXELS_COMPACT
+                || type == Protocol.MSG_FILL || type == Protocol.MSG_STROKE_BEGIN
+                || type == Protocol.MSG_STROKE_EXTEND;
+    }
+
+    // Reads the body of one message whose type byte has already been consumed and posts
+    // it to the studio loop as one command. Runs on the reader thread, which touches no studio state.
+    void dispatch(int type, DataInputStream in) throws IOException {
+        if (turnedAway) return;
+        if (type == Protocol.MSG_SELECT_STUDIO) {
+            turnedAway = !studios.select(this, in.readUTF());
+            return;
+        }
+        if (type == Protocol.MSG_FEATURES) {
+            studios.handleFeatures(this, in.readInt());
+            return;
+        }
+        if (type == Protocol.MSG_HELLO) {
+            int version = in.readInt();
+            if (version < Protocol.MIN_VERSION) {
+                System.out.println("Dropping a client on protocol version " + version);
+                turnedAway = true;
+                close();
+            }
+            return;
+        }
+        // Anything else before a MSG_SELECT_STUDIO joins the first studio
+        if (server == null && !studios.select(this, null)) return;
+        PaintServerHost s = server;
+        Runnable command;
+        try {
+            command = decode(type, in, s);
+        } catch (RuntimeException e) {
+            // A body the decoders choke on is as malformed as one they reject
+            throw new IOException("Malformed message " + type, e);
+        }
+        if (isDrawing(type)) {
+            // Applied or rejected, either way it's done once the command has run
+            int seq = ++drawSeq;
+            Runnable draw = command;
+            command = () -> {
+                draw.run();
+                s.acknowledge(this, seq);
+            };
+        }
+        if (command != null) s.execute(command);
+    }
+
+    // The message as a command for s; everything it needs is read here
+    private Runnable decode(int type, DataInputStream in, PaintServerHost s) throws IOException {
+        switch (type) {
+            case Protocol.MSG_NAME:
+                String name = in.readUTF();
+                return () -> s.handleJoin(this, name);
+            case Protocol.MSG_PIXELS: {
+                PixelBatch batch = new PixelBatch();
+                PixelCodec.readLegacy(in, batch);
+                return () -> s.handlePixelBatch(this, batch);
+            }
+            case Protocol.MSG_PIXELS_COMPACT: {
+                PixelBatch batch = new PixelBatch();
+                PixelCodec.readCompact(in, batch);
+                return () -> s.handlePixelBatch(this, batch);
+            }
+            case Protocol.MSG_FILL:
+                int x = in.readInt();
+                int y = in.readInt();
+                int fillColor = in.readInt();
+                return () -> s.handleFill(this, x, y, fillColor);
+            case Protocol.MSG_STROKE_BEGIN:
+                int color = in.readInt();
+                int radius = in.readUnsignedByte();
+                int bx = in.readInt();
+                int by = in.readInt();
+                lastX = bx;
+                lastY = by;
+                return () -> s.handleStrokeBegin(this, color, radius, bx, by);
+            case Protocol.MSG_STROKE_EXTEND: {
+                // Points are deltas from the previous one, so the piece starts with it
+                Stroke piece = new Stroke();
+                piece.add(lastX, lastY);
+                Stroke.readPoints(in, piece);
+                lastX = piece.x(piece.count - 1);
+                lastY = piece.y(piece.count - 1);
+                return () -> s.handleStrokeExtend(this, piece);
+            }
+            case Protocol.MSG_STROKE_END: return () -> s.handleStrokeEnd(this);
+            case Protocol.MSG_UNDO: return () -> s.handleUndo(this);
+            case Protocol.MSG_REDO: return () -> s.handleRedo(this);
+            case Protocol.MSG_REPLACE_CANVAS:
+                TiledCanvas loaded = SnapshotCodec.readTiles(in, SketchFile.MAX_SIZE, s.canvasSize());
+                return () -> s.handleReplaceCanvas(this, loaded);
+            case Protocol.MSG_CHAT:
+                String text = in.readUTF();
+                return () -> s.handleChat(this, text);
+            case Protocol.MSG_WHISPER:
+                String target = in.readUTF();
+                String msg = in.readUTF();
+                return () -> s.handleWhisper(this, target, msg);
+            case Protocol.MSG_VIEWPORT:
+                int vx = in.readInt();
+                int vy = in.readInt();
+                int vw = in.readInt();
+                int vh = in.readInt();
+                return () -> s.handleViewport(this, vx, vy, vw, vh);
+            case Protocol.MSG_CLEAR: return () -> s.handleClear(this);
+            case Protocol.MSG_CLIENT_READY: return () -> s.handleReady(this);
+            case Protocol.MSG_HOST_START: return s::handleHostStart;
+            default: return null;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+// Pixels drawn locally since the last flush, all in one colour, kept until the next frame
+// sends them as a single batch. A bitset over the canvas drops pixels already buffered, so
+// a spot scribbled over many times in one frame is sent once. FX thread only.
+public final class DrawBuffer {
+    private final PixelBatch batch = new PixelBatch();
+    private long[] seen = new long[0];
+    private int size;
+
+    boolean isEmpty() { return batch.isEmpty(); }
+
+    // Whether pixels of this colour can join the buffer without flushing it first
+    boolean accepts(int color) { return batch.isEmpty() || batch.color == color; }
+
+    // Adds the runs of b, which must already be clipped to a size x size canvas
+    void add(PixelBatch b, int size) {
+        if (size != this.size) {
+            // Canvas was replaced: nothing buffered refers to the new one
+            this.size = size;
+            seen = new long[(int) (((long) size * size + 63) >> 6)];
+            batch.reset(b.color);
+        }
+        if (batch.isEmpty()) batch.reset(b.color);
+        for (int r = 0; r < b.runCount; r++) {
+            int y = b.y(r);
+            long base = (long) y * size;
+            for (int x = b.x(r), end = x + b.length(r); x < end; x++) {
+                long i = base + x;
+                int w = (int) (i >> 6);
+                if ((seen[w] & (1L << i)) != 0) continue;
+                seen[w] |= 1L << i;
+                batch.add(x, y);
+            }
+        }
+    }
+
+    // The buffered pixels; valid until clear()
+    PixelBatch pending() { return batch; }
+
+    void clear() {
+        // Only the buffered pixels' bits are set
+        for (int r = 0; r < batch.runCount; r++) {
+            long base = (long) batch.y(r) * size;
+            for (long i = base + batch.x(r), end = i + batch.length(r); i < end; i++)
+                seen[(int) (i >> 6)] &= ~(1L << i);
+        }
+        batch.reset(batch.color);
+    }
+}
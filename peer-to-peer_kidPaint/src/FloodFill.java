@@ -0,0 +1,82 @@
+import java.util.Arrays;
+
+// Scanline bucket fill. Walks the 4-connected region of one colour a horizontal span at a
+// time: each popped seed is widened left and right, the span is recorded, and one seed is
+// pushed for every run of fillable pixels directly above and below it. Seeds live in a
+// growable int[] stack and visited pixels in a reused bitset, so a fill of a whole
+// canvas allocates nothing beyond the runs it returns. Not thread safe; one per caller.
+public final class FloodFill {
+    private int[] stack = new int[256];
+    private int top;
+    private long[] visited = new long[0];
+    private int size;
+
+    // Adds the region around (x, y) to out as runs, without changing the canvas.
+    // Returns out, left empty when (x, y) already has the target colour.
+    PixelBatch fill(TiledCanvas canvas, int x, int y, int color, PixelBatch out) {
+        out.reset(color);
+        if (!canvas.contains(x, y)) return out;
+        int target = canvas.get(x, y);
+        if (target == color) return out;
+
+        size = canvas.size();
+        long bits = (long) size * size;
+        if (visited.length * 64L < bits) visited = new long[(int) ((bits + 63) >> 6)];
+
+        top = 0;
+        push(x, y);
+        while (top > 0) {
+            int sy = stack[--top];
+            int sx = stack[--top];
+            if (isVisited(sx, sy) || canvas.get(sx, sy) != target) continue;
+
+            int lx = sx, rx = sx;
+            while (lx > 0 && fillable(canvas, lx - 1, sy, target)) lx--;
+            while (rx < size - 1 && fillable(canvas, rx + 1, sy, target)) rx++;
+            mark(lx, rx, sy);
+            out.addSpan(lx, sy, rx - lx + 1);
+
+            if (sy > 0) seedRow(canvas, lx, rx, sy - 1, target);
+            if (sy < size - 1) seedRow(canvas, lx, rx, sy + 1, target);
+        }
+
+        // Only the bits of the spans were set, so clearing them readies the bitset for the next fill
+        for (int r = 0; r < out.runCount; r++) unmark(out.x(r), out.x(r) + out.length(r) - 1, out.y(r));
+        return out;
+    }
+
+    // Pushes the first pixel of every fillable run in row y between lx and rx
+    private void seedRow(TiledCanvas canvas, int lx, int rx, int y, int target) {
+        boolean inRun = false;
+        for (int x = lx; x <= rx; x++) {
+            boolean f = fillable(canvas, x, y, target);
+            if (f && !inRun) push(x, y);
+            inRun = f;
+        }
+    }
+
+    private boolean fillable(TiledCanvas canvas, int x, int y, int target) {
+        return !isVisited(x, y) && canvas.get(x, y) == target;
+    }
+
+    private void push(int x, int y) {
+        if (top + 2 > stack.length) stack = Arrays.copyOf(stack, stack.length * 2);
+        stack[top++] = x;
+        stack[top++] = y;
+    }
+
+    private boolean isVisited(int x, int y) {
+        long i = (long) y * size + x;
+        return (visited[(int) (i >> 6)] & (1L << i)) != 0;
+    }
+
+    private void mark(int lx, int rx, int y) {
+        long base = (long) y * size;
+        for (long i = base + lx; i <= base + rx; i++) visited[(int) (i >> 6)] |= 1L << i;
+    }
+
+    private void unmark(int lx, int rx, int y) {
+        long base = (long) y * size;
+        for (long i = base + lx; i <= base + rx; i++) visited[(int) (i >> 6)] &= ~(1L << i);
+    }
+}
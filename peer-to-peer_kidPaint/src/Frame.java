@@ -0,0 +1,89 @@
+import java.io.IOException;
+
+// One encoded server-to-client message. Frames are immutable, so a broadcast builds
+// a single instance and every client's OutboundQueue shares it.
+public final class Frame {
+    // Placeholder left in a queue that fell behind; the writer swaps it for a fresh full sketch
+    static final Frame RESYNC = new Frame(Protocol.MSG_FULL_SKETCH, new byte[0], null, 0);
+
+    final int type;
+    final byte[] data; // Null for pixel batches, which are encoded on demand
+    // For canvas updates: the canvas version once this update is applied (0 for other frames)
+    final long canvasVersion;
+
+    // Pixel batches keep their runs so a backed-up queue can merge them, and are encoded
+    // in each format at most once, the first time a client that reads it is written to.
+    // A studio of current clients never builds the 8 bytes per pixel legacy message.
+    final PixelBatch pixels;
+    private volatile byte[] legacy, compact;
+    // Drawing command that produced the pixels (a fill or stroke), for clients with commandFeature
+    private final byte[] command;
+    private final int commandFeature;
+
+    private Frame(int type, byte[] data, PixelBatch pixels, long canvasVersion) {
+        this(type, data, pixels, canvasVersion, null, 0);
+    }
+
+    private Frame(int type, byte[] data, PixelBatch pixels, long canvasVersion, byte[] command, int commandFeature) {
+        this.type = type;
+        this.data = data;
+        this.pixels = pixels;
+        this.canvasVersion = canvasVersion;
+        this.command = command;
+        this.commandFeature = commandFeature;
+    }
+
+    static Frame of(byte[] data) {
+        return new Frame(data[0] & 0xFF, data, null, 0);
+    }
+
+    static Frame canvas(byte[] data, long canvasVersion) {
+        return new Frame(data[0] & 0xFF, data, null, canvasVersion);
+    }
+
+    // The batch must not be modified afterwards
+    static Frame pixels(PixelBatch batch, long canvasVersion) {
+        return new Frame(Protocol.MSG_PIXELS, null, batch, canvasVersion);
+    }
+
+    // A drawing command (MSG_FILL, MSG_STROKE) for clients with the given FEATURE_* bit, and the
+    // pixels it painted for the rest. Coalescing keeps only the pixels, which is still correct for everyone.
+    static Frame command(byte[] command, int feature, PixelBatch spans, long canvasVersion) {
+        return new Frame(Protocol.MSG_PIXELS, null, spans, canvasVersion, command, feature);
+    }
+
+    // The bytes to send to a client with the given FEATURE_* bits
+    byte[] encoded(int features) {
+        if (command != null && (features & commandFeature) != 0) return command;
+        if (pixels == null) return data;
+        boolean wantsCompact = (features & Protocol.FEATURE_COMPACT_PIXELS) != 0;
+        byte[] c = wantsCompact ? compact : legacy;
+        if (c == null) {
+            // Two writers may both encode it; either copy is the same
+            try {
+                FrameBuffer fb = FrameBuffer.acquire(wantsCompact ? Protocol.MSG_PIXELS_COMPACT : Protocol.MSG_PIXELS);
+                if (wantsCompact) PixelCodec.writeCompact(fb, pixels);
+                else PixelCodec.writeLegacy(fb, pixels);
+                c = fb.toByteArray();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            if (wantsCompact) compact = c;
+            else legacy = c;
+        }
+        return c;
+    }
+
+    // This update as plain pixel runs restricted to 'inside' (its own runs or a clipped copy),
+    // for a client that holds only part of the canvas and so can't replay commands
+    Frame pixelsOnly(PixelBatch inside) {
+        return inside == pixels && command == null ? this : pixels(inside, canvasVersion);
+    }
+
+    // Frames that only change the canvas, which a full sketch can replace
+    boolean isCanvasUpdate() {
+        return type == Protocol.MSG_PIXELS || type == Protocol.MSG_CLEAR
+                || type == Protocol.MSG_FULL_SKETCH || type == Protocol.MSG_FULL_SKETCH_COMPACT
+                || type == Protocol.MSG_TILES;
+    }
+}
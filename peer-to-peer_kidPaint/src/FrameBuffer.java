@@ -0,0 +1,67 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+// Reusable per-thread buffer that assembles one whole message, so it reaches the
+// socket in a single write instead of one write per writeInt/writeUTF.
+public final class FrameBuffer extends DataOutputStream {
+    private static final int MAX_POOLED = 1 << 20;
+    private static final ThreadLocal<FrameBuffer> POOL = ThreadLocal.withInitial(FrameBuffer::create);
+
+    private final Bytes bytes;
+    private boolean inUse;
+
+    private FrameBuffer(Bytes bytes) {
+        super(bytes);
+        this.bytes = bytes;
+    }
+
+    private static FrameBuffer create() {
+        return new FrameBuffer(new Bytes());
+    }
+
+    // Starts a new message of the given type
+    static FrameBuffer acquire(int type) {
+        FrameBuffer fb = POOL.get();
+        if (fb.inUse) fb = create(); // Another message is being built on this thread
+        fb.inUse = true;
+        fb.bytes.reset();
+        fb.written = 0;
+        fb.bytes.write(type);
+        return fb;
+    }
+
+    int type() { return bytes.array()[0] & 0xFF; }
+    int length() { return bytes.size(); }
+
+    // The finishing calls below copy or write the message out and hand the buffer back to the pool
+
+    byte[] toByteArray() {
+        byte[] data = bytes.toByteArray();
+        release();
+        return data;
+    }
+
+    Frame toFrame() {
+        return Frame.of(toByteArray());
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+        try {
+            out.write(bytes.array(), 0, bytes.size());
+        } finally {
+            release();
+        }
+    }
+
+    private void release() {
+        inUse = false;
+        if (bytes.array().length > MAX_POOLED && POOL.get() == this) POOL.set(create()); // Don't pin a huge snapshot buffer
+    }
+
+    private static final class Bytes extends ByteArrayOutputStream {
+        Bytes() { super(256); }
+        byte[] array() { return buf; }
+    }
+}
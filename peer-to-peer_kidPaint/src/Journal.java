@@ -0,0 +1,342 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+// Server-side crash recovery for a studio, enabled with -Dkidpaint.journal=<directory>.
+//
+// Every change applied to the canvas is appended to <studio>.journal.<generation> as
+//   int bodyLength, int crc32(body), body = byte type, then for REC_PIXELS a PixelCodec
+//   compact batch (REC_CLEAR has nothing more)
+// Appends only go to memory, from the studio loop; the "journal" thread writes whatever
+// piled up every kidpaint.journalSyncMs and fsyncs it once (group commit).
+//
+// Once kidpaint.snapshotMb of journal has been written, or a minute after the last
+// snapshot if anything changed, the canvas is snapshotted to <studio>.snapshot:
+//   int MAGIC, int FORMAT, int generation, int canvasSize, SnapshotCodec tiles message (non-blank tiles)
+// Only tiles changed since the previous snapshot are copied on the studio loop, into a shadow
+// canvas that is encoded off it. The journal moves on to the next generation at that
+// instant, so recovery is the snapshot plus the journals from its generation on. A torn
+// record at the end of a journal (crash mid-write) ends that file's replay.
+public class Journal {
+    static final String DIR = System.getProperty("kidpaint.journal");
+    static final int SYNC_MS = Integer.getInteger("kidpaint.journalSyncMs", 20);
+    static final long SNAPSHOT_BYTES = Long.getLong("kidpaint.snapshotMb", 4) * 1024 * 1024;
+    static final long SNAPSHOT_INTERVAL_MS = 60_000;
+
+    private static final int MAGIC = 0x4B50534E; // "KPSN"
+    private static final int FORMAT = 1;
+    private static final int REC_PIXELS = 1;
+    private static final int REC_CLEAR = 2;
+    private static final int MAX_RECORD = 64 * 1024 * 1024;
+
+    private final File dir;
+    private final String name;
+    private final Path snapshotPath;
+
+    // Guarded by this: records not yet handed to the writer
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(64 * 1024);
+    private final DataOutputStream bufferOut = new DataOutputStream(buffer);
+    private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+    private final DataOutputStream recordOut = new DataOutputStream(record);
+    private final CRC32 crc = new CRC32();
+    private boolean cleared; // A clear since the last snapshot
+    private volatile boolean closed;
+
+    // Writer thread only
+    private StudioLoop loop;
+    private TiledCanvas canvas;
+    private TiledCanvas shadow;
+    private long shadowVersion;
+    private int generation;
+    private FileChannel channel;
+    private long sinceSnapshot;
+    private long lastSnapshot;
+    private boolean snapshotDue;
+    private Thread writer;
+
+    // Stats
+    private long records, fsyncs, bytesWritten, snapshots;
+
+    Journal(File dir, String studioName) {
+        this.dir = dir;
+        this.name = studioName.replaceAll("[^A-Za-z0-9_-]", "_");
+        this.snapshotPath = new File(dir, name + ".snapshot").toPath();
+    }
+
+    // The journal for a studio, or null when journaling is off
+    static Journal open(String studioName) {
+        if (DIR == null) return null;
+        File dir = new File(DIR);
+        dir.mkdirs();
+        return new Journal(dir, studioName);
+    }
+
+    // --- Recovery ---
+
+    // The canvas as of the last journaled change, or null if there is nothing to restore.
+    // Must be called before start().
+    TiledCanvas recover(int size) throws IOException {
+        long t0 = System.nanoTime();
+        TiledCanvas restored = null;
+        int gen = 0;
+        if (Files.exists(snapshotPath)) {
+            try (DataInputStream in = new DataInputStream(Files.newInputStream(snapshotPath))) {
+                if (in.readInt() != MAGIC || in.readInt() != FORMAT) throw new IOException("Not a kidpaint snapshot: " + snapshotPath);
+                gen = in.readInt();
+                restored = new TiledCanvas(in.readInt());
+                SnapshotCodec.readTiles(new DataInputStream(new BufferedInputStream(in, 1 << 16)), restored);
+            }
+        }
+        long replayed = 0;
+        PixelBatch batch = new PixelBatch();
+        int last = lastGeneration();
+        for (int g = gen; g <= last; g++) {
+            File f = journalFile(g);
+            if (!f.exists()) continue;
+            if (restored == null) restored = new TiledCanvas(size);
+            replayed += replay(f, restored, batch);
+        }
+        generation = Math.max(gen, last) + 1; // Never append to a file that may end in a torn record
+        if (restored == null) return null;
+        if (restored.size() != size) {
+            System.out.println("[journal] " + name + " was " + restored.size() + "px, not " + size + "px; starting blank");
+            return null;
+        }
+        System.out.printf("[journal] restored %s (%dpx) from snapshot generation %d + %d records in %.1f ms%n",
+                name, size, gen, replayed, (System.nanoTime() - t0) / 1e6);
+        return restored;
+    }
+
+    // Applies the intact records of one journal file; returns how many
+    private static long replay(File f, TiledCanvas canvas, PixelBatch batch) throws IOException {
+        long n = 0;
+        CRC32 check = new CRC32();
+        try (InputStream raw = Files.newInputStream(f.toPath());
+             DataInputStream in = new DataInputStream(new BufferedInputStream(raw, 1 << 16))) {
+            byte[] body = new byte[256];
+            while (true) {
+                int length, sum;
+                try {
+                    length = in.readInt();
+                    sum = in.readInt();
+                    if (length <= 0 || length > MAX_RECORD) break;
+                    if (body.length < length) body = new byte[Math.max(length, body.length * 2)];
+                    in.readFully(body, 0, length);
+                } catch (EOFException e) {
+                    break; // Torn tail
+                }
+                check.reset();
+                check.update(body, 0, length);
+                if ((int) check.getValue() != sum) break;
+                DataInputStream rec = new DataInputStream(new ByteArrayInputStream(body, 0, length));
+                int type = rec.readUnsignedByte();
+                if (type == REC_CLEAR) canvas.clear();
+                else if (type == REC_PIXELS) {
+                    PixelCodec.readCompact(rec, batch);
+                    PixelBatch valid = batch.clipped(canvas.size());
+                    for (int r = 0; r < valid.runCount; r++)
+                        canvas.fillSpan(valid.x(r), valid.y(r), valid.length(r), valid.color);
+                }
+                n++;
+            }
+        }
+        return n;
+    }
+
+    // --- Appending, on the studio loop ---
+
+    synchronized void pixels(PixelBatch b) {
+        if (b.isEmpty() || closed) return;
+        try {
+            recordOut.writeByte(REC_PIXELS);
+            PixelCodec.writeCompact(recordOut, b);
+        } catch (IOException e) {}
+        append();
+    }
+
+    synchronized void clear() {
+        if (closed) return;
+        try {
+            recordOut.writeByte(REC_CLEAR);
+        } catch (IOException e) {}
+        cleared = true;
+        append();
+    }
+
+    private void append() {
+        byte[] body = record.toByteArray();
+        record.reset();
+        crc.reset();
+        crc.update(body);
+        try {
+            bufferOut.writeInt(body.length);
+            bufferOut.writeInt((int) crc.getValue());
+            bufferOut.write(body);
+        } catch (IOException e) {}
+        records++;
+    }
+
+    // --- Writer ---
+
+    // Starts the writer; loop makes every change to canvas. The first snapshot is taken right
+    // away, which folds whatever was recovered into one file.
+    void start(StudioLoop loop, TiledCanvas canvas) throws IOException {
+        this.loop = loop;
+        this.canvas = canvas;
+        this.shadow = new TiledCanvas(canvas.size());
+        this.channel = openGeneration(generation);
+        this.snapshotDue = true;
+        this.lastSnapshot = System.currentTimeMillis();
+        writer = new Thread(this::writeLoop, "journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private void writeLoop() {
+        try {
+            // Not interrupted to stop: that would close the channel under a write
+            while (!closed) {
+                try { Thread.sleep(SYNC_MS); } catch (InterruptedException e) {}
+                flush();
+                long now = System.currentTimeMillis();
+                if (sinceSnapshot >= SNAPSHOT_BYTES || (sinceSnapshot > 0 && now - lastSnapshot >= SNAPSHOT_INTERVAL_MS))
+                    snapshotDue = true;
+                if (snapshotDue) snapshot();
+            }
+            flush();
+        } catch (IOException e) {
+            System.out.println("[journal] " + name + " stopped: " + e);
+            closed = true; // Stop buffering what can't be written
+        }
+    }
+
+    // Writes and fsyncs everything appended so far: one write and one fsync however many records
+    private void flush() throws IOException {
+        byte[] pending = take();
+        if (pending.length == 0) return;
+        write(channel, pending);
+        channel.force(false);
+        fsyncs++;
+        bytesWritten += pending.length;
+        sinceSnapshot += pending.length;
+    }
+
+    private synchronized byte[] take() {
+        if (buffer.size() == 0) return new byte[0];
+        byte[] out = buffer.toByteArray();
+        buffer.reset();
+        return out;
+    }
+
+    private void snapshot() throws IOException {
+        byte[] tail = loop.call(this::copyChanged);
+        write(channel, tail);
+        channel.force(false);
+        channel.close();
+        generation++;
+        channel = openGeneration(generation);
+
+        Path tmp = new File(dir, name + ".snapshot.tmp").toPath();
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(out), 1 << 16));
+            data.writeInt(MAGIC);
+            data.writeInt(FORMAT);
+            data.writeInt(generation);
+            data.writeInt(shadow.size());
+            SnapshotCodec.writeTiles(data, shadow, SketchFile.paintedTiles(shadow));
+            data.flush();
+            out.force(true);
+        }
+        Files.move(tmp, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        deleteBefore(generation);
+        sinceSnapshot = 0;
+        lastSnapshot = System.currentTimeMillis();
+        snapshotDue = false;
+        snapshots++;
+    }
+
+    // On the studio loop: brings the shadow canvas up to date and returns the records it now covers
+    private synchronized byte[] copyChanged() {
+        int[] cells = new int[TiledCanvas.TILE * TiledCanvas.TILE];
+        if (cleared) shadow.clear();
+        cleared = false;
+        for (int t : canvas.tilesNewerThan(shadowVersion)) {
+            if (canvas.isTileBlank(t)) continue;
+            canvas.readTile(t, cells);
+            shadow.writeTile(t, cells);
+        }
+        shadowVersion = canvas.version();
+        // Everything appended before this point is in the snapshot
+        return take();
+    }
+
+    // Stops the writer after a last flush
+    void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        if (writer == null) return;
+        try { writer.join(); } catch (InterruptedException e) {}
+        try { channel.close(); } catch (IOException e) {}
+    }
+
+    String report() {
+        return String.format("[journal] %s: %d records, %d bytes in %d fsyncs, %d snapshots, generation %d",
+                name, records, bytesWritten, fsyncs, snapshots, generation);
+    }
+
+    // --- Files ---
+
+    private File journalFile(int gen) {
+        return new File(dir, name + ".journal." + gen);
+    }
+
+    // Highest journal generation on disk, or -1
+    private int lastGeneration() {
+        int last = -1;
+        String[] files = dir.list();
+        if (files == null) return last;
+        String prefix = name + ".journal.";
+        for (String f : files) {
+            if (!f.startsWith(prefix)) continue;
+            try { last = Math.max(last, Integer.parseInt(f.substring(prefix.length()))); } catch (NumberFormatException e) {}
+        }
+        return last;
+    }
+
+    private void deleteBefore(int gen) {
+        String[] files = dir.list();
+        if (files == null) return;
+        String prefix = name + ".journal.";
+        for (String f : files) {
+            if (!f.startsWith(prefix)) continue;
+            try {
+                if (Integer.parseInt(f.substring(prefix.length())) < gen) new File(dir, f).delete();
+            } catch (NumberFormatException e) {}
+        }
+    }
+
+    private FileChannel openGeneration(int gen) throws IOException {
+        return FileChannel.open(journalFile(gen).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private static void write(FileChannel channel, byte[] bytes) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        while (buf.hasRemaining()) channel.write(buf);
+    }
+}
@@ -5,7 +5,7 @@ public class KidPaint2 extends Application {
     final static String TITLE = "KidPaint 2.0";
     final static int SERVER_PORT = 12345;
 
-    PaintServerHost server;
+    StudioManager studios;
 
     @Override
     public void start(Stage stage) throws Exception {
@@ -34,10 +34,11 @@ public class KidPaint2 extends Application {
                         int size = hostDialog.getCanvasSize();
                         boolean isDrawGuess = hostDialog.isDrawGuess();
 
-                        server = new PaintServerHost(SERVER_PORT, roomName, size, isDrawGuess);
-                        new Thread(server).start();
+                        studios = new StudioManager(SERVER_PORT);
+                        studios.host(roomName, size, isDrawGuess);
+                        new Thread(studios).start();
 
-                        new MainWindow(stage, username, "127.0.0.1", SERVER_PORT, true, isDrawGuess);
+                        new MainWindow(stage, username, "127.0.0.1", SERVER_PORT, roomName, true, isDrawGuess);
                         keepingSelection = false; // Exit loop, game started
                     }
                     // If created is false (Back clicked), loop continues -> shows Menu again
@@ -49,7 +50,7 @@ public class KidPaint2 extends Application {
 
                     if (info != null) {
                         // User selected a room
-                        new MainWindow(stage, username, info.getIpAddress(), info.getPort(), false, false); // Dummy false for mode, will be set by server
+                        new MainWindow(stage, username, info.getIpAddress(), info.getPort(), info.getStudioName(), false, false); // Dummy false for mode, will be set by server
                         keepingSelection = false; // Exit loop, game started
                     }
                     // If info is null (Dialog closed), loop continues -> shows Menu again
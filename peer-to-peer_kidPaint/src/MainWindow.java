@@ -4,14 +4,16 @@ import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 import javafx.fxml.FXML;
 import javafx.fxml.FXMLLoader;
+import javafx.geometry.Insets;
+import javafx.geometry.Pos;
 import javafx.scene.Parent;
 import javafx.scene.Scene;
 import javafx.scene.canvas.Canvas;
-import javafx.scene.canvas.GraphicsContext;
 import javafx.scene.control.*;
 import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
 import javafx.scene.image.PixelReader;
+import javafx.scene.input.MouseButton;
 import javafx.scene.layout.*;
 import javafx.scene.paint.Color;
 import javafx.scene.shape.Circle;
@@ -26,20 +28,11 @@ import java.net.Socket;
 import java.util.*;
 
 public class MainWindow {
-    final int MSG_NAME = 0;
-    final int MSG_PIXELS = 1;
-    final int MSG_CHAT = 2;
-    final int MSG_FULL_SKETCH = 3;
-    final int MSG_CLEAR = 4;
-    final int MSG_WHISPER = 8;
-    final int MSG_GAME_OVER = 10;
-    final int MSG_LOBBY_UPDATE = 20;
-    final int MSG_GAME_STATE = 21;
-    final int MSG_YOUR_TURN = 22;
-    final int MSG_LEADERBOARD = 23;
-    final int MSG_MODE = 25; // NEW
-    final int MSG_CLIENT_READY = 50;
-    final int MSG_HOST_START = 51;
+    // Local drawing is sent at most this often, from the AnimationTimer (0 = every frame);
+    // stroke points also go once STROKE_FLUSH_POINTS have piled up
+    final long DRAW_FLUSH_NANOS = Long.getLong("kidpaint.drawFlushMs", 50) * 1_000_000L;
+    final int STROKE_FLUSH_POINTS = 64;
+    final int HANDSHAKE_TIMEOUT_MS = 10_000;
 
     @FXML StackPane rootStack;
     @FXML VBox lobbyOverlay;
@@ -49,6 +42,7 @@ public class MainWindow {
 
     @FXML Label lblTopInfo;
     @FXML ComboBox<String> cmbTool;
+    @FXML ComboBox<String> cmbBrush;
     @FXML Rectangle rectCurrentColor;
     @FXML Button btnSelectColor;
     @FXML Canvas canvas;
@@ -59,40 +53,84 @@ public class MainWindow {
     @FXML Button btnSend;
     @FXML Button btnClear;
     @FXML Button btnUndo;
+    @FXML Button btnRedo;
 
     @FXML Button btnSave; // NEW
     @FXML Button btnLoad; // NEW
 
     private Stage stage;
     private Socket socket;
-    private DataInputStream in;
+    private Protocol.Reader reader;
     private DataOutputStream out;
+    private boolean framed; // Both directions use Protocol frames; set by the handshake, before the threads start
+    // Written by the sender thread only, so the FX thread never waits on the socket
+    private final OutboundQueue outbound = new OutboundQueue(4096, OutboundQueue.SlowConsumerPolicy.DISCONNECT);
+    private final WireStats wireStats = WireStats.create("client");
+    private WireStats.Counted wire;
     private String username;
 
-    private int[][] gridData;
+    private PredictedCanvas sketch; // What is displayed: the server's canvas plus our unacknowledged drawing
+    private CanvasRenderer renderer;
+    private final FloodFill floodFill = new FloodFill(); // FX thread only
+    private final Stroke remoteStroke = new Stroke(); // Listener thread only
+
+    // Pen/eraser stroke in progress (FX thread): points not yet sent, after the last one that was
+    private final Stroke stroke = new Stroke();
+    private final Stroke segment = new Stroke();
+    private boolean stroking;
+    private boolean strokeCommands; // Server takes MSG_STROKE_*; otherwise each segment goes as pixels
+    private long lastFlush;
+    private final DrawBuffer drawBuffer = new DrawBuffer(); // Pixels awaiting the next flush, for servers without strokes
     private int canvasSize = 50;
     private double pixelSize = 10;
     private int selectedColorARGB = 0xFF000000;
     private boolean isHost = false;
     private boolean canDraw = true;
     private String currentTargetWord = "---";
+    // Round countdown, run locally from the deadline the server sent (FX thread)
+    private long roundEndsAt; // System.nanoTime(), 0 when no round is running
+    private String roundDrawer;
+    private int shownSeconds = -1;
     private boolean isDrawGuessMode = false; // NEW
+    private volatile int serverFeatures = 0; // FEATURE_* bits the server accepted
+    private final PixelBatch incoming = new PixelBatch(); // Reused by the listener thread
+
+    // Zoom and pan (FX thread). With FEATURE_VIEWPORT the server only sends what is in view,
+    // plus an overview of the whole canvas that the minimap shows.
+    private static final double MINIMAP_SIZE = 160;
+    private final Canvas minimap = new Canvas(MINIMAP_SIZE, MINIMAP_SIZE);
+    private double panFromX, panFromY;
+    private boolean panning;
+    private final int[] sentView = new int[4]; // Tile-aligned view last sent as MSG_VIEWPORT
+    private volatile boolean canvasKnown; // The server told us its canvas size
+    private volatile TiledCanvas overview; // Replaced, never modified, by the listener thread
+    private volatile int overviewScale;
 
     class Point { int x, y; Point(int x, int y){this.x=x;this.y=y;} }
 
-    public MainWindow(Stage stage, String username, String ip, int port, boolean isHost, boolean isDrawGuessMode) throws IOException {
+    public MainWindow(Stage stage, String username, String ip, int port, String studio, boolean isHost, boolean isDrawGuessMode) throws IOException {
         this.stage = stage;
         this.username = username;
         this.isHost = isHost;
         this.isDrawGuessMode = isDrawGuessMode; // NEW: Init for host
-        this.gridData = new int[canvasSize][canvasSize];
+        this.sketch = new PredictedCanvas(canvasSize);
 
         socket = new Socket(ip, port);
-        in = new DataInputStream(socket.getInputStream());
-        out = new DataOutputStream(socket.getOutputStream());
-
-        out.write(MSG_NAME);
-        out.writeUTF(username);
+        socket.setTcpNoDelay(true);
+        reader = new Protocol.Reader(socket.getInputStream());
+        wire = wireStats.wrap(socket.getOutputStream());
+        out = new DataOutputStream(new BufferedOutputStream(wire, 8192));
+        handshake();
+        new Thread(this::writeLoop, "kidpaint-sender").start();
+
+        // One server can host several studios; pick ours before joining it
+        FrameBuffer select = FrameBuffer.acquire(Protocol.MSG_SELECT_STUDIO);
+        select.writeUTF(studio);
+        send(select);
+
+        FrameBuffer hello = FrameBuffer.acquire(Protocol.MSG_NAME);
+        hello.writeUTF(username);
+        send(hello);
 
         FXMLLoader loader = new FXMLLoader(getClass().getResource("mainWindownUI.fxml"));
         loader.setController(this);
@@ -103,21 +141,41 @@ public class MainWindow {
         stage.show();
 
         initUI();
+        renderer = new CanvasRenderer(canvas);
 
         new Thread(this::listen).start();
         new AnimationTimer() { public void handle(long now) { render(); } }.start();
     }
 
+    // Agrees on optional wire features, and with them the message layout, before anything else is sent
+    private void handshake() throws IOException {
+        FrameBuffer features = FrameBuffer.acquire(Protocol.MSG_FEATURES);
+        features.writeInt(Protocol.FEATURE_COMPACT_PIXELS | Protocol.FEATURE_COMPACT_SNAPSHOT | Protocol.FEATURE_TILES | Protocol.FEATURE_FILL | Protocol.FEATURE_STROKES
+                | Protocol.FEATURE_ACKS | Protocol.FEATURE_REPLACE_CANVAS | Protocol.FEATURE_ROUND_DEADLINE | Protocol.FEATURE_FRAMES
+                | Protocol.FEATURE_VIEWPORT);
+        features.writeTo(out);
+        out.flush();
+        socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+        if (reader.next(false) != Protocol.MSG_FEATURES) throw new IOException("Not a KidPaint server");
+        serverFeatures = reader.body().readInt();
+        socket.setSoTimeout(0);
+        if ((serverFeatures & Protocol.FEATURE_ACKS) != 0) sketch.enablePrediction();
+        framed = (serverFeatures & Protocol.FEATURE_FRAMES) != 0;
+        if (framed) outbound.offer(Protocol.hello());
+    }
+
     private void initUI() {
         btnStartGame.setVisible(isHost);
-        btnStartGame.setOnAction(e -> sendSimple(MSG_HOST_START));
-        btnReady.setOnAction(e -> sendSimple(MSG_CLIENT_READY));
+        btnStartGame.setOnAction(e -> sendSimple(Protocol.MSG_HOST_START));
+        btnReady.setOnAction(e -> sendSimple(Protocol.MSG_CLIENT_READY));
 
         btnSend.setOnAction(e -> sendChat());
         chatInput.setOnAction(e -> sendChat());
         btnSelectColor.setOnAction(e -> showColorPopup());
         rectCurrentColor.setFill(Color.BLACK);
-        btnClear.setOnAction(e -> sendSimple(MSG_CLEAR));
+        btnClear.setOnAction(e -> sendSimple(Protocol.MSG_CLEAR));
+        btnUndo.setOnAction(e -> sendHistory(Protocol.MSG_UNDO));
+        btnRedo.setOnAction(e -> sendHistory(Protocol.MSG_REDO));
 
         // NEW: Save and Load
         btnSave.setOnAction(e -> saveSketch());
@@ -131,8 +189,40 @@ public class MainWindow {
         canvas.widthProperty().addListener(obs -> calculateGrid());
         canvas.heightProperty().addListener(obs -> calculateGrid());
 
-        canvas.setOnMouseDragged(e -> handleDrag(e.getX(), e.getY()));
-        canvas.setOnMousePressed(e -> handleClick(e.getX(), e.getY()));
+        // Left button draws; the wheel zooms, and the right or middle button drags the view
+        canvas.setOnMouseDragged(e -> {
+            if (panning) {
+                renderer.pan(e.getX() - panFromX, e.getY() - panFromY);
+                panFromX = e.getX();
+                panFromY = e.getY();
+            } else handleDrag(e.getX(), e.getY());
+        });
+        canvas.setOnMousePressed(e -> {
+            panning = e.getButton() != MouseButton.PRIMARY;
+            panFromX = e.getX();
+            panFromY = e.getY();
+            if (!panning) handleClick(e.getX(), e.getY());
+        });
+        canvas.setOnMouseReleased(e -> {
+            if (panning) panning = false;
+            else endStroke();
+        });
+        canvas.setOnScroll(e -> renderer.zoom(Math.pow(1.2, e.getDeltaY() / 40), e.getX(), e.getY()));
+
+        // Click or drag on the minimap to look somewhere else
+        minimap.setVisible(false);
+        StackPane.setAlignment(minimap, Pos.BOTTOM_RIGHT);
+        StackPane.setMargin(minimap, new Insets(8));
+        minimap.setOnMousePressed(e -> panToMinimap(e.getX(), e.getY()));
+        minimap.setOnMouseDragged(e -> panToMinimap(e.getX(), e.getY()));
+        canvasContainer.getChildren().add(minimap);
+    }
+
+    private void panToMinimap(double mx, double my) {
+        TiledCanvas o = overview;
+        if (o == null) return;
+        double k = o.size() * overviewScale / MINIMAP_SIZE;
+        renderer.centerOn(mx * k, my * k);
     }
 
     // --- Save / Load Logic ---
@@ -140,15 +230,17 @@ public class MainWindow {
     private void saveSketch() {
         FileChooser fileChooser = new FileChooser();
         fileChooser.setTitle("Save Sketch");
-        fileChooser.getExtensionFilters().add(new FileChooser.ExtensionFilter("KidPaint Data", "*.dat"));
+        fileChooser.getExtensionFilters().addAll(new FileChooser.ExtensionFilter("KidPaint Sketch", SketchFile.EXTENSION),
+                new FileChooser.ExtensionFilter("PNG Image", "*.png"));
         File file = fileChooser.showSaveDialog(stage);
         if (file != null) {
-            try (DataOutputStream dos = new DataOutputStream(new FileOutputStream(file))) {
-                dos.writeInt(canvasSize);
-                for (int i = 0; i < canvasSize; i++) {
-                    for (int j = 0; j < canvasSize; j++) {
-                        dos.writeInt(gridData[i][j]);
+            try {
+                if (isPng(file)) {
+                    try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16)) {
+                        PngCodec.write(out, sketch.display());
                     }
+                } else {
+                    SketchFile.write(file.toPath(), sketch.display());
                 }
             } catch (IOException ex) { ex.printStackTrace(); }
         }
@@ -159,37 +251,39 @@ public class MainWindow {
 
         FileChooser fileChooser = new FileChooser();
         fileChooser.setTitle("Load Sketch");
-        fileChooser.getExtensionFilters().add(new FileChooser.ExtensionFilter("KidPaint Data", "*.dat"));
+        fileChooser.getExtensionFilters().addAll(new FileChooser.ExtensionFilter("KidPaint Sketch", SketchFile.EXTENSION, SketchFile.LEGACY_EXTENSION),
+                new FileChooser.ExtensionFilter("PNG Image", "*.png"));
         File file = fileChooser.showOpenDialog(stage);
         if (file != null) {
-            try (DataInputStream dis = new DataInputStream(new FileInputStream(file))) {
-                int size = dis.readInt();
-
-                // 1. Wipe the board first
-                sendSimple(MSG_CLEAR);
-
-                // 2. Read pixels and group them by color for batch sending
-                Map<Integer, List<Point>> colorMap = new HashMap<>();
-
-                for (int i = 0; i < size; i++) {
-                    for (int j = 0; j < size; j++) {
-                        int color = dis.readInt();
-                        // Only process non-empty pixels that fit on current canvas
-                        if (color != 0 && i < canvasSize && j < canvasSize) {
-                            colorMap.computeIfAbsent(color, k -> new ArrayList<>()).add(new Point(i, j));
-                        }
+            try {
+                TiledCanvas loaded;
+                if (isPng(file)) {
+                    // Scaled to this studio's canvas while it streams in
+                    try (InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16)) {
+                        loaded = PngCodec.read(in, canvasSize);
                     }
+                } else {
+                    loaded = SketchFile.read(file.toPath());
                 }
-
-                // 3. Send batches to server (so everyone sees the loaded image)
-                for (Map.Entry<Integer, List<Point>> entry : colorMap.entrySet()) {
-                    sendPixels(entry.getKey(), entry.getValue());
+                endStroke();
+                flushDrawing();
+                if ((serverFeatures & Protocol.FEATURE_REPLACE_CANVAS) != 0) {
+                    // One message; the server clips it to the studio's canvas and sends everyone a snapshot
+                    FrameBuffer fb = FrameBuffer.acquire(Protocol.MSG_REPLACE_CANVAS);
+                    SnapshotCodec.writeTiles(fb, loaded, SketchFile.paintedTiles(loaded));
+                    send(fb);
+                } else {
+                    sendSimple(Protocol.MSG_CLEAR);
+                    for (PixelBatch b : SketchFile.colorRuns(loaded, canvasSize)) sendPixels(b);
                 }
-
             } catch (IOException ex) { ex.printStackTrace(); }
         }
     }
 
+    private static boolean isPng(File file) {
+        return file.getName().toLowerCase().endsWith(".png");
+    }
+
     private void calculateGrid() {
         if (canvasSize == 0) return;
         double size = Math.floor(Math.min(canvas.getWidth(), canvas.getHeight()));
@@ -197,92 +291,119 @@ public class MainWindow {
     }
 
     private void handleDrag(double mx, double my) {
-        if (!canDraw || gridData == null) return;
+        if (!canDraw) return;
         if ("Bucket".equals(cmbTool.getValue())) return;
 
         Point p = getGridPoint(mx, my);
-        if (p != null) {
-            List<Point> points = new ArrayList<>();
-            points.add(p);
-
-            if ("Pen".equals(cmbTool.getValue())) {
-                sendPixels(selectedColorARGB, points);
-                gridData[p.x][p.y] = selectedColorARGB;
-            } else if ("Eraser".equals(cmbTool.getValue())) {
-                sendPixels(0, points);
-                gridData[p.x][p.y] = 0;
-            }
+        if (p == null) return;
+        if (!stroking) {
+            beginStroke(p);
+            return;
         }
+        int lastX = stroke.x(stroke.count - 1), lastY = stroke.y(stroke.count - 1);
+        if (p.x == lastX && p.y == lastY) return;
+
+        // Join the previous point so fast drags leave no gaps
+        segment.reset(stroke.color, stroke.radius);
+        segment.add(lastX, lastY);
+        segment.add(p.x, p.y);
+        PixelBatch pixels = segment.rasterize(sketch.size(), new PixelBatch());
+        sketch.paint(pixels);
+        stroke.add(p.x, p.y);
+        if (!strokeCommands) {
+            bufferPixels(pixels);
+            stroke.keepLast();
+        } else if (stroke.count > STROKE_FLUSH_POINTS) {
+            flushDrawing();
+        }
+    }
+
+    private void beginStroke(Point p) {
+        int color;
+        if ("Pen".equals(cmbTool.getValue())) color = selectedColorARGB;
+        else if ("Eraser".equals(cmbTool.getValue())) color = 0;
+        else return;
+        int radius = (Integer.parseInt(cmbBrush.getValue()) - 1) / 2;
+
+        stroke.reset(color, radius);
+        stroke.add(p.x, p.y);
+        stroking = true;
+        strokeCommands = (serverFeatures & Protocol.FEATURE_STROKES) != 0;
+        PixelBatch pixels = stroke.rasterize(sketch.size(), new PixelBatch());
+        sketch.paint(pixels);
+        if (!strokeCommands) {
+            bufferPixels(pixels);
+            return;
+        }
+        try {
+            FrameBuffer fb = FrameBuffer.acquire(Protocol.MSG_STROKE_BEGIN);
+            fb.writeInt(color);
+            fb.writeByte(stroke.radius);
+            fb.writeInt(p.x);
+            fb.writeInt(p.y);
+            send(fb);
+            sketch.sent();
+        } catch (IOException e) {}
+    }
+
+    private void bufferPixels(PixelBatch pixels) {
+        if (!drawBuffer.accepts(pixels.color)) flushDrawing();
+        drawBuffer.add(pixels, sketch.size());
+    }
+
+    // Sends what was drawn since the last flush: the new stroke points as one MSG_STROKE_EXTEND,
+    // or the buffered pixels as one batch
+    private void flushDrawing() {
+        lastFlush = System.nanoTime();
+        if (!drawBuffer.isEmpty()) {
+            sendPixels(drawBuffer.pending());
+            drawBuffer.clear();
+        }
+        if (!stroking || !strokeCommands || stroke.count <= 1) return;
+        try {
+            FrameBuffer fb = FrameBuffer.acquire(Protocol.MSG_STROKE_EXTEND);
+            Stroke.writePoints(fb, stroke, 1, stroke.x(0), stroke.y(0));
+            send(fb);
+            sketch.sent();
+        } catch (IOException e) {}
+        stroke.keepLast();
+    }
+
+    private void endStroke() {
+        if (!stroking) return;
+        flushDrawing();
+        if (strokeCommands) sendSimple(Protocol.MSG_STROKE_END);
+        stroking = false;
     }
 
     private void handleClick(double mx, double my) {
-        if (!canDraw || gridData == null) return;
+        if (!canDraw) return;
 
         Point p = getGridPoint(mx, my);
         if (p != null) {
             if ("Bucket".equals(cmbTool.getValue())) {
-                int targetColor = gridData[p.x][p.y];
-                if (targetColor != selectedColorARGB) {
-                    List<Point> filled = floodFill(p.x, p.y, targetColor, selectedColorARGB);
-                    sendPixels(selectedColorARGB, filled);
+                boolean fillCommands = (serverFeatures & Protocol.FEATURE_FILL) != 0;
+                if (fillCommands && (serverFeatures & Protocol.FEATURE_ACKS) == 0) {
+                    // The server fills in its own order and echoes the command back, so every
+                    // canvas replays it against the same pixels
+                    sendFill(p.x, p.y, selectedColorARGB);
+                    return;
                 }
+                // Predicted: shown now, and corrected on the ack if the server's fill came out different
+                PixelBatch filled = floodFill.fill(sketch.display(), p.x, p.y, selectedColorARGB, new PixelBatch());
+                if (filled.isEmpty()) return;
+                sketch.paint(filled);
+                if (fillCommands) sendFill(p.x, p.y, selectedColorARGB);
+                else sendPixels(filled);
             } else {
-                handleDrag(mx, my);
+                beginStroke(p);
             }
         }
     }
 
     private Point getGridPoint(double mx, double my) {
-        double w = canvas.getWidth();
-        double h = canvas.getHeight();
-        double size = Math.floor(Math.min(w, h));
-        double startX = Math.floor((w - size) / 2);
-        double startY = Math.floor((h - size) / 2);
-        double pxSize = size / canvasSize;
-
-        if (mx >= startX && mx < startX + size && my >= startY && my < startY + size) {
-            int col = (int)((mx - startX) / pxSize);
-            int row = (int)((my - startY) / pxSize);
-            if (col >= 0 && col < canvasSize && row >= 0 && row < canvasSize) {
-                return new Point(col, row);
-            }
-        }
-        return null;
-    }
-
-    private List<Point> floodFill(int x, int y, int targetColor, int replaceColor) {
-        List<Point> result = new ArrayList<>();
-        if (targetColor == replaceColor) return result;
-
-        int width = gridData.length;
-        int height = gridData[0].length;
-        boolean[][] visited = new boolean[width][height];
-        Queue<Point> queue = new LinkedList<>();
-
-        queue.add(new Point(x, y));
-        visited[x][y] = true;
-
-        while (!queue.isEmpty()) {
-            Point p = queue.poll();
-            result.add(p);
-
-            int[] dx = {0, 0, 1, -1};
-            int[] dy = {1, -1, 0, 0};
-
-            for (int i = 0; i < 4; i++) {
-                int nx = p.x + dx[i];
-                int ny = p.y + dy[i];
-
-                if (nx >= 0 && nx < width && ny >= 0 && ny < height) {
-                    if (!visited[nx][ny] && gridData[nx][ny] == targetColor) {
-                        visited[nx][ny] = true;
-                        queue.add(new Point(nx, ny));
-                    }
-                }
-            }
-        }
-        for(Point p : result) gridData[p.x][p.y] = replaceColor;
-        return result;
+        int[] p = renderer.toCanvas(mx, my);
+        return p == null ? null : new Point(p[0], p[1]);
     }
 
     private void showColorPopup() {
@@ -321,47 +442,111 @@ public class MainWindow {
     }
 
     private void render() {
-        GraphicsContext gc = canvas.getGraphicsContext2D();
-        double w = canvas.getWidth();
-        double h = canvas.getHeight();
-
-        gc.clearRect(0, 0, w, h);
-
-        double size = Math.floor(Math.min(w, h));
-        double startX = Math.floor((w - size) / 2);
-        double startY = Math.floor((h - size) / 2);
+        if (System.nanoTime() - lastFlush >= DRAW_FLUSH_NANOS) flushDrawing();
+        renderer.render(sketch.display());
+        if (canvasKnown && (serverFeatures & Protocol.FEATURE_VIEWPORT) != 0 && renderer.viewChanged(sentView)) sendViewport();
+        TiledCanvas o = overview;
+        boolean showMinimap = o != null && renderer.partial();
+        if (showMinimap) renderer.renderMinimap(minimap, o, overviewScale);
+        if (minimap.isVisible() != showMinimap) minimap.setVisible(showMinimap);
+        if (roundEndsAt != 0) showCountdown();
+    }
 
-        gc.setFill(Color.WHITE);
-        gc.fillRect(startX, startY, size, size);
+    private void sendViewport() {
+        try {
+            FrameBuffer fb = FrameBuffer.acquire(Protocol.MSG_VIEWPORT);
+            fb.writeInt(sentView[0]);
+            fb.writeInt(sentView[1]);
+            fb.writeInt(sentView[2] - sentView[0]);
+            fb.writeInt(sentView[3] - sentView[1]);
+            send(fb);
+        } catch (IOException e) {}
+    }
 
-        if (gridData == null) return;
+    // The label only changes once a second, or when the word does
+    private void showCountdown() {
+        int seconds = (int) Math.max(0, (roundEndsAt - System.nanoTime() + 999_999_999L) / 1_000_000_000L);
+        if (seconds == shownSeconds) return;
+        shownSeconds = seconds;
+        lblTopInfo.setText("Time: " + seconds + " | Word: " + currentTargetWord + " | Drawer: " + roundDrawer);
+    }
 
-        double pxSize = size / canvasSize;
+    private void showRoundBars(boolean visible) {
+        if (lblTopInfo.getParent() instanceof Region) {
+            Region topBar = (Region) lblTopInfo.getParent();
+            topBar.setVisible(visible);
+            topBar.setManaged(visible);
+        }
 
-        for (int i = 0; i < canvasSize; i++) {
-            for (int j = 0; j < canvasSize; j++) {
-                int color = gridData[i][j];
-                if (color != 0) {
-                    gc.setFill(Color.rgb((color >> 16) & 0xFF, (color >> 8) & 0xFF, color & 0xFF));
-                    gc.fillRect(startX + i * pxSize, startY + j * pxSize, pxSize + 0.6, pxSize + 0.6);
-                }
-            }
+        if (leaderboardList.getParent() instanceof Region) {
+            Region lbBox = (Region) leaderboardList.getParent();
+            lbBox.setVisible(visible);
+            lbBox.setManaged(visible);
         }
     }
 
-    private void sendPixels(int color, List<Point> points) {
+    private void sendPixels(PixelBatch batch) {
         try {
-            out.write(MSG_PIXELS);
-            out.writeInt(color);
-            out.writeInt(points.size());
-            for(Point p : points) {
-                out.writeInt(p.x);
-                out.writeInt(p.y);
+            if ((serverFeatures & Protocol.FEATURE_COMPACT_PIXELS) != 0) {
+                FrameBuffer fb = FrameBuffer.acquire(Protocol.MSG_PIXELS_COMPACT);
+                PixelCodec.writeCompact(fb, batch);
+                send(fb);
+            } else {
+                FrameBuffer fb = FrameBuffer.acquire(Protocol.MSG_PIXELS);
+                PixelCodec.writeLegacy(fb, batch);
+                send(fb);
             }
+            sketch.sent();
+        } catch (IOException e) {}
+    }
+
+    private void sendFill(int x, int y, int color) {
+        try {
+            FrameBuffer fb = FrameBuffer.acquire(Protocol.MSG_FILL);
+            fb.writeInt(x);
+            fb.writeInt(y);
+            fb.writeInt(color);
+            send(fb);
+            sketch.sent();
         } catch (IOException e) {}
     }
 
-    private void sendSimple(int type) { try { out.write(type); } catch(IOException e) {} }
+    private void sendSimple(int type) { send(FrameBuffer.acquire(type)); }
+
+    // Undo / redo apply to whatever was drawn before them, so buffered drawing goes first
+    private void sendHistory(int type) {
+        endStroke();
+        flushDrawing();
+        sendSimple(type);
+    }
+
+    // Queues one assembled message for the sender thread, which flushes each batch as one segment
+    private void send(FrameBuffer fb) {
+        if (!outbound.offer(Frame.of(fb.toByteArray()))) {
+            // The server stopped reading thousands of messages ago
+            try { socket.close(); } catch (IOException e) {}
+        }
+    }
+
+    private void writeLoop() {
+        try {
+            Frame f;
+            while ((f = outbound.take()) != null) {
+                // Write everything that is already queued, then flush the batch once
+                do {
+                    if (framed) {
+                        wire.frame(f.type, Protocol.framedLength(f.data));
+                        Protocol.writeFrame(out, f.data);
+                    } else {
+                        wire.frame(f.type, f.data.length);
+                        out.write(f.data);
+                    }
+                } while ((f = outbound.poll()) != null);
+                out.flush();
+            }
+        } catch (IOException | InterruptedException e) {}
+        outbound.close();
+    }
 
     private void sendChat() {
         try {
@@ -370,49 +555,42 @@ public class MainWindow {
                 if (t.startsWith("/w ")) {
                     String[] parts = t.split(" ", 3);
                     if (parts.length == 3) {
-                        out.write(MSG_WHISPER);
-                        out.writeUTF(parts[1]); // Target Name
-                        out.writeUTF(parts[2]); // Message
+                        FrameBuffer fb = FrameBuffer.acquire(Protocol.MSG_WHISPER);
+                        fb.writeUTF(parts[1]); // Target Name
+                        fb.writeUTF(parts[2]); // Message
+                        send(fb);
                         chatInput.clear();
                         return;
                     }
                 }
-                out.write(MSG_CHAT);
-                out.writeUTF(t);
+                FrameBuffer fb = FrameBuffer.acquire(Protocol.MSG_CHAT);
+                fb.writeUTF(t);
+                send(fb);
                 chatInput.clear();
             }
         } catch(IOException e){}
     }
 
+    // Runs until the server hangs up; unknown messages are skipped when framed
     private void listen() {
         try {
-            while (true) {
-                int type = in.read();
+            int type;
+            while ((type = reader.next(framed)) >= 0) {
+                DataInputStream in = reader.body();
                 switch (type) {
-                    case MSG_LOBBY_UPDATE:
+                    case Protocol.MSG_LOBBY_UPDATE:
                         int count = in.readInt();
                         HashMap<String, Boolean> status = new HashMap<>();
                         for(int i=0; i<count; i++) status.put(in.readUTF(), in.readBoolean());
                         Platform.runLater(() -> updateLobby(status));
                         break;
 
-                    case MSG_GAME_STATE:
+                    case Protocol.MSG_GAME_STATE:
                         String drawer = in.readUTF();
                         int time = in.readInt();
                         Platform.runLater(() -> {
                             boolean isDrawTogether = (time == -1);
-
-                            if (lblTopInfo.getParent() instanceof Region) {
-                                Region topBar = (Region) lblTopInfo.getParent();
-                                topBar.setVisible(!isDrawTogether);
-                                topBar.setManaged(!isDrawTogether);
-                            }
-
-                            if (leaderboardList.getParent() instanceof Region) {
-                                Region lbBox = (Region) leaderboardList.getParent();
-                                lbBox.setVisible(!isDrawTogether);
-                                lbBox.setManaged(!isDrawTogether);
-                            }
+                            showRoundBars(!isDrawTogether);
 
                             if (!isDrawTogether) {
                                 lblTopInfo.setText("Time: " + time + " | Word: " + currentTargetWord + " | Drawer: " + drawer);
@@ -421,64 +599,123 @@ public class MainWindow {
                         });
                         break;
 
-                    case MSG_GAME_OVER:
+                    case Protocol.MSG_ROUND_DEADLINE:
+                        String roundOf = in.readUTF();
+                        long endsAt = System.nanoTime() + in.readInt() * 1_000_000L;
+                        Platform.runLater(() -> {
+                            roundDrawer = roundOf;
+                            roundEndsAt = endsAt;
+                            shownSeconds = -1;
+                            showRoundBars(true);
+                            lobbyOverlay.setVisible(false);
+                        });
+                        break;
+
+                    case Protocol.MSG_GAME_OVER:
                         Platform.runLater(() -> {
+                            roundEndsAt = 0;
                             lobbyOverlay.setVisible(true);
                             if (isHost) btnStartGame.setText("RESTART GAME");
                         });
                         break;
-                    case MSG_FULL_SKETCH:
+                    case Protocol.MSG_FULL_SKETCH:
                         int newSize = in.readInt();
-                        if (this.canvasSize != newSize || gridData == null) {
-                            this.canvasSize = newSize;
-                            this.gridData = new int[newSize][newSize];
-                            Platform.runLater(this::calculateGrid);
-                        }
+                        TiledCanvas full = sketch.confirmed();
+                        if (full.size() != newSize) full = new TiledCanvas(newSize);
                         for(int i=0; i<newSize; i++)
                             for(int j=0; j<newSize; j++)
-                                gridData[i][j] = in.readInt();
+                                full.set(i, j, in.readInt());
+                        snapshotReceived(full);
+                        break;
+                    case Protocol.MSG_FULL_SKETCH_COMPACT:
+                        // Decodes straight into the confirmed canvas when the size is unchanged
+                        snapshotReceived(SnapshotCodec.read(in, sketch.confirmed()));
                         break;
-                    case MSG_PIXELS:
-                        int c = in.readInt();
-                        int ptsCount = in.readInt();
-                        for(int i=0; i<ptsCount; i++) {
-                            int x = in.readInt();
-                            int y = in.readInt();
-                            if(gridData != null && x>=0 && x<canvasSize && y>=0 && y<canvasSize)
-                                gridData[x][y] = c;
+                    case Protocol.MSG_OVERVIEW:
+                        int fullSize = in.readInt();
+                        int scale = in.readInt();
+                        TiledCanvas shrunk = SnapshotCodec.read(in, null);
+                        // Joined with just the overview: what's in view arrives as tiles once we say what that is
+                        if (fullSize != sketch.size()) snapshotReceived(new TiledCanvas(fullSize));
+                        canvasKnown = true;
+                        overviewScale = scale;
+                        overview = shrunk;
+                        break;
+                    case Protocol.MSG_TILES:
+                        SnapshotCodec.readTiles(in, sketch.confirmed());
+                        sketch.confirmedChanged();
+                        break;
+                    case Protocol.MSG_PIXELS:
+                        PixelCodec.readLegacy(in, incoming);
+                        sketch.serverPixels(incoming);
+                        break;
+                    case Protocol.MSG_PIXELS_COMPACT:
+                        PixelCodec.readCompact(in, incoming);
+                        sketch.serverPixels(incoming);
+                        break;
+                    case Protocol.MSG_FILL:
+                        int fx = in.readInt();
+                        int fy = in.readInt();
+                        sketch.serverFill(fx, fy, in.readInt(), incoming);
+                        break;
+                    case Protocol.MSG_STROKE:
+                        Stroke.readSegment(in, remoteStroke);
+                        sketch.serverPixels(remoteStroke.rasterize(sketch.size(), incoming));
+                        break;
+                    case Protocol.MSG_ACK:
+                        sketch.ack(in.readInt());
+                        break;
+                    case Protocol.MSG_HELLO:
+                        int version = in.readInt();
+                        if (version < Protocol.MIN_VERSION) {
+                            System.out.println("Server speaks protocol version " + version + ", too old for this client");
+                            socket.close();
                         }
                         break;
-                    case MSG_CHAT:
+                    case Protocol.MSG_CHAT:
                         String msg = in.readUTF();
                         Platform.runLater(() -> chatArea.appendText(msg + "\n"));
                         break;
-                    case MSG_YOUR_TURN:
+                    case Protocol.MSG_YOUR_TURN:
                         boolean myTurn = in.readBoolean();
                         String word = in.readUTF();
                         Platform.runLater(() -> {
                             canDraw = myTurn;
                             currentTargetWord = myTurn ? word : "???";
+                            shownSeconds = -1;
                             if(myTurn) chatArea.appendText(">>> YOUR TURN! DRAW: " + word.toUpperCase() + " <<<\n");
                             else chatArea.appendText(">>> GUESS THE WORD! <<<\n");
                         });
                         break;
-                    case MSG_CLEAR:
-                        if(gridData != null)
-                            for(int[] row : gridData) java.util.Arrays.fill(row, 0);
+                    case Protocol.MSG_CLEAR:
+                        sketch.serverClear();
                         break;
-                    case MSG_LEADERBOARD:
+                    case Protocol.MSG_LEADERBOARD:
                         int num = in.readInt();
                         ObservableList<String> scores = FXCollections.observableArrayList();
                         for(int i=0; i<num; i++) scores.add(in.readUTF());
                         Platform.runLater(() -> leaderboardList.setItems(scores));
                         break;
-                    case MSG_MODE: // NEW
+                    case Protocol.MSG_MODE: // NEW
                         isDrawGuessMode = in.readBoolean();
                         break;
                 }
             }
-        } catch (IOException e) {
-            Platform.runLater(() -> stage.close());
+        } catch (IOException e) {}
+        Platform.runLater(() -> stage.close());
+    }
+
+    private void snapshotReceived(TiledCanvas snapshot) {
+        canvasKnown = true;
+        if (snapshot == sketch.confirmed()) {
+            sketch.confirmedChanged();
+            return;
+        }
+        sketch.replaceConfirmed(snapshot);
+        if (canvasSize != snapshot.size()) {
+            canvasSize = snapshot.size();
+            System.out.println(snapshot.footprint());
+            Platform.runLater(this::calculateGrid);
         }
     }
 
@@ -0,0 +1,289 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// NIO server mode: the accepting thread hands each SocketChannel to one of a small,
+// fixed pool of selector loops. A loop does non-blocking reads into a per-connection
+// buffer, decodes every complete message in it and runs the normal PaintServerHost
+// handlers, so hundreds of spectators cost a few threads instead of one each. The
+// loops are shared by every studio of the StudioManager.
+public class NioServer implements Runnable {
+    static final int MAX_MESSAGE = Protocol.MAX_FRAME;
+    static final int WRITE_BATCH = 32;
+
+    private final StudioManager studios;
+    private final ServerSocketChannel serverChannel;
+    private final EventLoop[] loops;
+
+    public NioServer(StudioManager studios, int port, int ioThreads) throws IOException {
+        this.studios = studios;
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.bind(new InetSocketAddress(port), StudioManager.BACKLOG);
+        this.loops = new EventLoop[Math.max(1, ioThreads)];
+        for (int i = 0; i < loops.length; i++) loops[i] = new EventLoop();
+    }
+
+    @Override
+    public void run() {
+        for (int i = 0; i < loops.length; i++) new Thread(loops[i], "nio-loop-" + i).start();
+        int next = 0;
+        try {
+            while (true) {
+                SocketChannel ch = serverChannel.accept();
+                ch.configureBlocking(false);
+                ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                EventLoop loop = loops[next++ % loops.length];
+                NioConnection conn = new NioConnection(studios, ch, loop);
+                loop.register(conn);
+            }
+        } catch (IOException e) { e.printStackTrace(); }
+    }
+
+    // Length of the complete client message starting at buf.position(), or -1 if not
+    // enough bytes have arrived yet to know. The result may exceed buf.remaining().
+    static int messageLength(ByteBuffer buf, boolean framed) throws IOException {
+        int start = buf.position();
+        if (buf.remaining() < 1) return -1;
+        if (framed) return Protocol.frameLength(buf);
+        int type = buf.get(start) & 0xFF;
+        switch (type) {
+            case Protocol.MSG_NAME:
+            case Protocol.MSG_CHAT:
+            case Protocol.MSG_SELECT_STUDIO:
+                int end = utfEnd(buf, start + 1);
+                return end < 0 ? -1 : end - start;
+            case Protocol.MSG_WHISPER:
+                int first = utfEnd(buf, start + 1);
+                int second = first < 0 ? -1 : utfEnd(buf, first);
+                return second < 0 ? -1 : second - start;
+            case Protocol.MSG_PIXELS:
+                if (buf.remaining() < 9) return -1;
+                long len = 9 + 8L * buf.getInt(start + 5);
+                if (len < 9 || len > MAX_MESSAGE) throw new IOException("Bad pixel batch length " + len);
+                return (int) len;
+            case Protocol.MSG_PIXELS_COMPACT:
+            case Protocol.MSG_STROKE_EXTEND:
+            case Protocol.MSG_REPLACE_CANVAS:
+                if (buf.remaining() < 5) return -1;
+                long body = buf.getInt(start + 1);
+                if (body < 0 || body > MAX_MESSAGE) throw new IOException("Bad message length " + body);
+                return (int) (5 + body);
+            case Protocol.MSG_FEATURES:
+                return 5;
+            case Protocol.MSG_VIEWPORT:
+                return 17;
+            case Protocol.MSG_FILL:
+                return 13;
+            case Protocol.MSG_STROKE_BEGIN:
+                return 14;
+            default:
+                return 1; // Type-only messages (and unknown bytes, which the blocking reader also skips)
+        }
+    }
+
+    // Absolute index just past a writeUTF string starting at 'at', or -1 if incomplete
+    private static int utfEnd(ByteBuffer buf, int at) {
+        if (buf.limit() - at < 2) return -1;
+        return at + 2 + (buf.getShort(at) & 0xFFFF);
+    }
+
+    static class NioConnection extends ClientConnection {
+        final SocketChannel channel;
+        final EventLoop loop;
+        ByteBuffer readBuf = ByteBuffer.allocate(8 * 1024);
+        // Frames being written with one gathering write, owned by the loop thread; once the
+        // client reads frames each one takes two buffers, its header and its message
+        final ByteBuffer[] batch = new ByteBuffer[2 * WRITE_BATCH];
+        int batchStart, batchEnd;
+        int batchType; // Type of the batch's last frame, which its socket writes are charged to
+        byte[] headers; // Frame headers of the batch, allocated once the client reads frames
+        final AtomicBoolean writeRequested = new AtomicBoolean();
+        SelectionKey key;
+        boolean closed;
+        boolean resyncPending; // Took a RESYNC off the queue; nothing more is written until it is built
+        volatile Frame resynced; // The built resync, handed over by the studio loop
+
+        NioConnection(StudioManager studios, SocketChannel channel, EventLoop loop) {
+            super(studios);
+            this.channel = channel;
+            this.loop = loop;
+        }
+
+        void frameQueued() {
+            if (writeRequested.compareAndSet(false, true)) loop.requestWrite(this);
+        }
+
+        // The next frame to write, or null if there is none yet. A RESYNC is built on the studio
+        // loop rather than waited for here, as this thread serves the clients of every studio.
+        Frame next() {
+            if (resyncPending) {
+                Frame f = resynced;
+                if (f == null) return null;
+                resynced = null;
+                resyncPending = false;
+                return resolve(f);
+            }
+            Frame f = outbound.poll();
+            if (f != Frame.RESYNC) return f == null ? null : resolve(f);
+            resyncPending = true;
+            server.resyncLater(this, built -> {
+                resynced = built;
+                frameQueued();
+            });
+            return null;
+        }
+
+        // Whether next() has something, so OP_WRITE is worth asking for
+        boolean writable() {
+            return resyncPending ? resynced != null : !outbound.isEmpty();
+        }
+
+        void close() {
+            outbound.close();
+            loop.execute(() -> loop.closeConnection(this));
+        }
+    }
+
+    static class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final Protocol.Body body = new Protocol.Body(); // Messages are decoded before dispatch returns
+
+        EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void register(NioConnection conn) {
+            execute(() -> {
+                try {
+                    conn.key = conn.channel.register(selector, SelectionKey.OP_READ, conn);
+                    if (conn.writable()) conn.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                } catch (IOException e) { closeConnection(conn); }
+            });
+        }
+
+        void requestWrite(NioConnection conn) {
+            execute(() -> {
+                if (conn.key != null && conn.key.isValid())
+                    conn.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            });
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        try {
+                            task.run();
+                        } catch (RuntimeException e) { e.printStackTrace(); }
+                    }
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        NioConnection conn = (NioConnection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) read(conn);
+                            if (key.isValid() && key.isWritable()) write(conn);
+                        } catch (Throwable e) {
+                            closeConnection(conn); // Even an OutOfMemoryError costs just this connection
+                        }
+                    }
+                } catch (Throwable e) {
+                    e.printStackTrace(); // The loop serves many connections, so it must outlive anything
+                }
+            }
+        }
+
+        private void read(NioConnection conn) throws IOException {
+            int n = conn.channel.read(conn.readBuf);
+            if (n < 0) {
+                closeConnection(conn);
+                return;
+            }
+            ByteBuffer buf = conn.readBuf;
+            buf.flip();
+            while (true) {
+                int len = NioServer.messageLength(buf, conn.framesIn);
+                if (len < 0 || len > buf.remaining()) {
+                    // Grow when the message can't fit, or its header alone already fills the buffer
+                    int needed = len < 0 && buf.remaining() == buf.capacity() ? buf.capacity() + 1 : len;
+                    if (needed > buf.capacity()) {
+                        ByteBuffer bigger = ByteBuffer.allocate(Math.max(needed, buf.capacity() * 2));
+                        bigger.put(buf);
+                        conn.readBuf = bigger;
+                        return; // already in write mode
+                    }
+                    break;
+                }
+                int start = buf.position();
+                int type = buf.get(start) & 0xFF;
+                int bodyAt = conn.framesIn ? Protocol.bodyOffset(buf, start) : start + 1;
+                conn.dispatch(type, body.of(buf.array(), bodyAt, start + len - bodyAt));
+                buf.position(start + len);
+            }
+            buf.compact();
+        }
+
+        private void write(NioConnection conn) throws IOException {
+            WireStats stats = conn.studios.wireStats;
+            while (true) {
+                if (conn.batchStart == conn.batchEnd) {
+                    // Refill the batch from the queue so several frames go out in one syscall
+                    conn.batchStart = conn.batchEnd = 0;
+                    Frame f;
+                    for (int i = 0; i < WRITE_BATCH && (f = conn.next()) != null; i++) {
+                        byte[] data = f.encoded(conn.features);
+                        if (conn.framesOut) {
+                            if (conn.headers == null) conn.headers = new byte[WRITE_BATCH * Protocol.MAX_HEADER];
+                            stats.frame(data[0], Protocol.framedLength(data));
+                            conn.batch[conn.batchEnd++] = Protocol.header(data, conn.headers, i * Protocol.MAX_HEADER);
+                            conn.batch[conn.batchEnd++] = ByteBuffer.wrap(data, 1, data.length - 1);
+                        } else {
+                            stats.frame(data[0], data.length);
+                            conn.batch[conn.batchEnd++] = ByteBuffer.wrap(data);
+                        }
+                        conn.batchType = data[0];
+                        conn.written(data);
+                    }
+                    if (conn.batchEnd == 0) break;
+                }
+                stats.socketWrite(conn.batchType);
+                conn.channel.write(conn.batch, conn.batchStart, conn.batchEnd - conn.batchStart);
+                while (conn.batchStart < conn.batchEnd && !conn.batch[conn.batchStart].hasRemaining())
+                    conn.batch[conn.batchStart++] = null;
+                if (conn.batchStart < conn.batchEnd) return; // Socket is full, wait for the next OP_WRITE
+            }
+            conn.key.interestOps(SelectionKey.OP_READ);
+            conn.writeRequested.set(false);
+            if (conn.writable() && conn.writeRequested.compareAndSet(false, true))
+                conn.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+
+        void closeConnection(NioConnection conn) {
+            if (conn.closed) return;
+            conn.closed = true;
+            if (conn.key != null) conn.key.cancel();
+            try { conn.channel.close(); } catch (IOException e) {}
+            conn.disconnected();
+        }
+    }
+}
@@ -0,0 +1,436 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Append-only history of canvas edits, for per-user undo and redo. Every pixel batch, stroke,
+// fill and clear goes through here: it records the prior colour of just the pixels it touches
+// (run-length encoded) and paints the canvas. The log is a ring with a memory budget
+// (-Dkidpaint.undoBudgetMb); the oldest ops fall off and can no longer be undone.
+//
+// Each pixel also remembers which op last painted it. Undo restores only the pixels an op
+// still owns, so edits other users made on top of it survive, and redo only repaints pixels
+// nobody has drawn over since. Studio loop only.
+public class OpLog {
+    static final long DEFAULT_BUDGET = Long.getLong("kidpaint.undoBudgetMb", 32) * 1024 * 1024;
+    private static final int TILE_INTS = TiledCanvas.TILE * TiledCanvas.TILE;
+
+    // The pixels one paint call touched, sorted by (y, x) with no overlaps, the colour it
+    // painted them and what they were before
+    static final class Chunk {
+        final int color;
+        final int[] runs; // x, y, length
+        final int runCount;
+        final int[] runStart; // Index of each run's first pixel
+        // Prior (colour, owner op) per pixel, as runs ending before rleEnd[i]
+        final int[] rleEnd, rleColor, rleOwner;
+        final int rleCount;
+
+        Chunk(int color, int[] runs, int runCount, int[] runStart, int[] rleEnd, int[] rleColor, int[] rleOwner, int rleCount) {
+            this.color = color;
+            this.runs = runs;
+            this.runCount = runCount;
+            this.runStart = runStart;
+            this.rleEnd = rleEnd;
+            this.rleColor = rleColor;
+            this.rleOwner = rleOwner;
+            this.rleCount = rleCount;
+        }
+
+        long bytes() { return 48 + 4L * (4 * runCount + 3 * rleCount); }
+
+        // Pixel index of (x, y) in this chunk, or -1
+        int find(int x, int y) {
+            int lo = 0, hi = runCount - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int my = runs[mid * 3 + 1], mx = runs[mid * 3];
+                if (my < y || (my == y && mx + runs[mid * 3 + 2] <= x)) lo = mid + 1;
+                else if (my > y || mx > x) hi = mid - 1;
+                else return runStart[mid] + x - mx;
+            }
+            return -1;
+        }
+
+        // Index into the rle arrays for pixel i
+        int rle(int i) {
+            int lo = 0, hi = rleCount - 1;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (rleEnd[mid] <= i) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+    }
+
+    static final class Op {
+        final int id;
+        final String user;
+        final List<Chunk> chunks = new ArrayList<>(1);
+        boolean undone;
+        long bytes = 64;
+        // A clear also keeps the owner map it replaced, for the pixels that were already blank
+        int[][] ownersBefore;
+        int[] baseBefore;
+
+        Op(int id, String user) {
+            this.id = id;
+            this.user = user;
+        }
+    }
+
+    private final TiledCanvas canvas;
+    private final long budget;
+    private final ArrayDeque<Op> log = new ArrayDeque<>();
+    private final Map<Integer, Op> byId = new HashMap<>();
+    private final Map<String, ArrayDeque<Op>> redoStacks = new HashMap<>();
+    private int nextId = 1;
+    private long bytes;
+    // Op that last painted each pixel, per tile; a tile without an array is all baseOwner[t]
+    private final int[][] owners;
+    private final int[] baseOwner;
+    private int ownerTiles;
+
+    // Stats
+    private long evicted, undos, undoNanos, maxUndoNanos;
+
+    public OpLog(TiledCanvas canvas) {
+        this(canvas, DEFAULT_BUDGET);
+    }
+
+    public OpLog(TiledCanvas canvas, long budget) {
+        this.canvas = canvas;
+        this.budget = budget;
+        this.owners = new int[canvas.tileCount()][];
+        this.baseOwner = new int[canvas.tileCount()];
+    }
+
+    // Paints spans (clipped to the canvas) as a new op by user
+    Op paint(String user, PixelBatch spans) {
+        return paint(user, Collections.singletonList(spans));
+    }
+
+    // Paints batches of several colours, which must not overlap, as one op
+    Op paint(String user, List<PixelBatch> batches) {
+        Op op = new Op(nextId++, user);
+        redoStacks.remove(user);
+        for (PixelBatch spans : batches) append(op, spans);
+        log.add(op);
+        byId.put(op.id, op);
+        evict();
+        return op;
+    }
+
+    // Paints more of an op still in progress (a stroke). Returns false if it already fell off the log.
+    boolean extend(Op op, PixelBatch spans) {
+        if (byId.get(op.id) != op || op.undone) return false;
+        append(op, spans);
+        evict();
+        return true;
+    }
+
+    // Records every painted pixel, then clears the canvas
+    Op clear(String user) {
+        PixelBatch painted = new PixelBatch();
+        painted.reset(0);
+        int[] tile = new int[TILE_INTS];
+        for (int t = 0; t < canvas.tileCount(); t++) {
+            if (canvas.isTileBlank(t)) continue;
+            canvas.readTile(t, tile);
+            int x0 = canvas.tileX(t), y0 = canvas.tileY(t);
+            for (int row = 0; row < canvas.tileHeight(t); row++)
+                for (int col = 0; col < canvas.tileWidth(t); col++)
+                    if (tile[row * TiledCanvas.TILE + col] != 0) painted.add(x0 + col, y0 + row);
+        }
+        Op op = new Op(nextId++, user);
+        redoStacks.remove(user);
+        Chunk chunk = record(op, painted);
+        if (chunk != null) {
+            op.chunks.add(chunk);
+            op.bytes += chunk.bytes();
+            bytes += chunk.bytes();
+        }
+        canvas.clear();
+        op.ownersBefore = owners.clone();
+        op.baseBefore = baseOwner.clone();
+        long kept = 4L * (baseOwner.length + (long) ownerTiles * TILE_INTS);
+        op.bytes += kept;
+        bytes += kept;
+        Arrays.fill(owners, null);
+        Arrays.fill(baseOwner, op.id);
+        ownerTiles = 0;
+        log.add(op);
+        byId.put(op.id, op);
+        evict();
+        return op;
+    }
+
+    // Reverts user's latest op that is still in the log; returns the pixels that changed, by colour
+    List<PixelBatch> undo(String user) {
+        long start = System.nanoTime();
+        Op op = lastLive(user);
+        if (op == null) return new ArrayList<>();
+
+        Changes changes = new Changes();
+        for (int c = op.chunks.size() - 1; c >= 0; c--) {
+            Chunk chunk = op.chunks.get(c);
+            forEachPixel(chunk, (x, y, i) -> {
+                if (owner(x, y) != op.id) return; // Painted over since; that edit stays
+                int k = chunk.rle(i);
+                int color = chunk.rleColor[k], owner = chunk.rleOwner[k];
+                // Skip past earlier ops that have been undone themselves
+                for (int hops = 0; hops < 64; hops++) {
+                    Op prev = byId.get(owner);
+                    if (prev == null || !prev.undone) break;
+                    int[] prior = priorOf(prev, x, y);
+                    if (prior == null) break;
+                    color = prior[0];
+                    owner = prior[1];
+                }
+                setOwner(x, y, owner);
+                changes.add(x, y, color);
+            });
+        }
+        if (op.ownersBefore != null) reownBlank(op, false);
+        op.undone = true;
+        redoStacks.computeIfAbsent(user, u -> new ArrayDeque<>()).push(op);
+        List<PixelBatch> out = changes.apply(canvas);
+
+        long took = System.nanoTime() - start;
+        undos++;
+        undoNanos += took;
+        maxUndoNanos = Math.max(maxUndoNanos, took);
+        return out;
+    }
+
+    // Repaints user's most recently undone op where nobody has drawn since
+    List<PixelBatch> redo(String user) {
+        Op op = popRedo(user);
+        if (op == null) return new ArrayList<>();
+
+        Changes changes = new Changes();
+        for (Chunk chunk : op.chunks) {
+            forEachPixel(chunk, (x, y, i) -> {
+                Op current = byId.get(owner(x, y));
+                if (current != null && current.id > op.id && !current.undone) return;
+                setOwner(x, y, op.id);
+                changes.add(x, y, chunk.color);
+            });
+        }
+        if (op.ownersBefore != null) reownBlank(op, true);
+        op.undone = false;
+        return changes.apply(canvas);
+    }
+
+    String report() {
+        return String.format("[oplog] %d ops, %.1f KB of %.1f KB budget, %d evicted, owner map %.1f KB; %d undos, avg %.2f ms, max %.2f ms",
+                log.size(), bytes / 1024.0, budget / 1024.0, evicted, ownerTiles * 4.0 * TILE_INTS / 1024,
+                undos, undos == 0 ? 0 : undoNanos / 1e6 / undos, maxUndoNanos / 1e6);
+    }
+
+    long bytes() { return bytes; }
+    int size() { return log.size(); }
+
+    // --- Internals ---
+
+    private Op lastLive(String user) {
+        for (Iterator<Op> it = log.descendingIterator(); it.hasNext(); ) {
+            Op op = it.next();
+            if (!op.undone && op.user.equals(user)) return op;
+        }
+        return null;
+    }
+
+    // Most recently undone op of user still in the log
+    private Op popRedo(String user) {
+        ArrayDeque<Op> stack = redoStacks.get(user);
+        while (stack != null && !stack.isEmpty()) {
+            Op op = stack.pop();
+            if (byId.get(op.id) == op) return op;
+        }
+        return null;
+    }
+
+    private void append(Op op, PixelBatch spans) {
+        // Pixels this op already owns keep the prior recorded the first time
+        PixelBatch fresh = new PixelBatch(spans.runCount);
+        fresh.reset(spans.color);
+        for (int r = 0; r < spans.runCount; r++) {
+            int y = spans.y(r);
+            for (int x = spans.x(r), end = x + spans.length(r); x < end; x++)
+                if (op.chunks.isEmpty() || owner(x, y) != op.id) fresh.add(x, y);
+        }
+        Chunk chunk = record(op, fresh);
+        if (chunk == null) return;
+        op.chunks.add(chunk);
+        op.bytes += chunk.bytes();
+        bytes += chunk.bytes();
+        for (int r = 0; r < chunk.runCount; r++) {
+            int x = chunk.runs[r * 3], y = chunk.runs[r * 3 + 1], len = chunk.runs[r * 3 + 2];
+            canvas.fillSpan(x, y, len, chunk.color);
+            for (int i = 0; i < len; i++) setOwner(x + i, y, op.id);
+        }
+    }
+
+    // Sorts and merges the spans, and reads the priors of their pixels; null if there are none
+    private Chunk record(Op op, PixelBatch spans) {
+        if (spans.isEmpty()) return null;
+        long[] keys = new long[spans.runCount];
+        for (int r = 0; r < spans.runCount; r++)
+            keys[r] = ((long) spans.y(r) << 40) | ((long) spans.x(r) << 16) | spans.length(r);
+        Arrays.sort(keys);
+
+        int[] runs = new int[keys.length * 3];
+        int n = 0;
+        for (long key : keys) {
+            int y = (int) (key >>> 40), x = (int) ((key >>> 16) & 0xFFFFFF), len = (int) (key & 0xFFFF);
+            if (n > 0 && runs[(n - 1) * 3 + 1] == y && runs[(n - 1) * 3] + runs[(n - 1) * 3 + 2] >= x) {
+                int end = Math.max(runs[(n - 1) * 3] + runs[(n - 1) * 3 + 2], x + len);
+                runs[(n - 1) * 3 + 2] = end - runs[(n - 1) * 3];
+                continue;
+            }
+            runs[n * 3] = x;
+            runs[n * 3 + 1] = y;
+            runs[n * 3 + 2] = len;
+            n++;
+        }
+
+        int[] runStart = new int[n];
+        int[] rleEnd = new int[16], rleColor = new int[16], rleOwner = new int[16];
+        int rles = 0, pixel = 0;
+        for (int r = 0; r < n; r++) {
+            runStart[r] = pixel;
+            int x = runs[r * 3], y = runs[r * 3 + 1], len = runs[r * 3 + 2];
+            for (int i = 0; i < len; i++, pixel++) {
+                int color = canvas.get(x + i, y), owner = owner(x + i, y);
+                if (rles > 0 && rleColor[rles - 1] == color && rleOwner[rles - 1] == owner) {
+                    rleEnd[rles - 1] = pixel + 1;
+                    continue;
+                }
+                if (rles == rleEnd.length) {
+                    rleEnd = Arrays.copyOf(rleEnd, rles * 2);
+                    rleColor = Arrays.copyOf(rleColor, rles * 2);
+                    rleOwner = Arrays.copyOf(rleOwner, rles * 2);
+                }
+                rleEnd[rles] = pixel + 1;
+                rleColor[rles] = color;
+                rleOwner[rles] = owner;
+                rles++;
+            }
+        }
+        return new Chunk(spans.color, Arrays.copyOf(runs, n * 3), n, runStart,
+                Arrays.copyOf(rleEnd, rles), Arrays.copyOf(rleColor, rles), Arrays.copyOf(rleOwner, rles), rles);
+    }
+
+    // (colour, owner) of (x, y) before op last painted it, or null if op never did
+    private int[] priorOf(Op op, int x, int y) {
+        for (int c = op.chunks.size() - 1; c >= 0; c--) {
+            Chunk chunk = op.chunks.get(c);
+            int i = chunk.find(x, y);
+            if (i < 0) continue;
+            int k = chunk.rle(i);
+            return new int[] { chunk.rleColor[k], chunk.rleOwner[k] };
+        }
+        if (op.ownersBefore == null) return null;
+        int t = canvas.tileIndex(x, y);
+        int[] tile = op.ownersBefore[t];
+        return new int[] { 0, tile == null ? op.baseBefore[t] : tile[index(x, y)] };
+    }
+
+    // Hands the pixels that were blank at a clear back to their earlier owners on undo, or to
+    // the clear again on redo, wherever nobody else has painted since
+    private void reownBlank(Op clear, boolean redo) {
+        for (int t = 0; t < owners.length; t++) {
+            int[] tile = owners[t];
+            if (tile == null) {
+                Op current = byId.get(baseOwner[t]);
+                if (redo ? current != null && current.id > clear.id && !current.undone : baseOwner[t] != clear.id) continue;
+                int[] before = clear.ownersBefore[t];
+                if (redo) baseOwner[t] = clear.id;
+                else if (before == null) baseOwner[t] = clear.baseBefore[t];
+                else {
+                    owners[t] = before.clone();
+                    ownerTiles++;
+                }
+                continue;
+            }
+            for (int i = 0; i < TILE_INTS; i++) {
+                if (redo) {
+                    Op current = byId.get(tile[i]);
+                    if (current == null || current.id < clear.id || current.undone) tile[i] = clear.id;
+                } else if (tile[i] == clear.id) {
+                    int[] before = clear.ownersBefore[t];
+                    tile[i] = before == null ? clear.baseBefore[t] : before[i];
+                }
+            }
+        }
+    }
+
+    private void evict() {
+        while (bytes > budget && !log.isEmpty()) {
+            Op old = log.poll();
+            byId.remove(old.id);
+            bytes -= old.bytes;
+            evicted++;
+        }
+    }
+
+    private int owner(int x, int y) {
+        int t = canvas.tileIndex(x, y);
+        int[] tile = owners[t];
+        return tile == null ? baseOwner[t] : tile[index(x, y)];
+    }
+
+    private void setOwner(int x, int y, int id) {
+        int t = canvas.tileIndex(x, y);
+        if (owners[t] == null) {
+            if (baseOwner[t] == id) return;
+            owners[t] = new int[TILE_INTS];
+            Arrays.fill(owners[t], baseOwner[t]);
+            ownerTiles++;
+        }
+        owners[t][index(x, y)] = id;
+    }
+
+    private static int index(int x, int y) {
+        return ((y & (TiledCanvas.TILE - 1)) << TiledCanvas.TILE_SHIFT) | (x & (TiledCanvas.TILE - 1));
+    }
+
+    private interface PixelVisitor {
+        void visit(int x, int y, int i);
+    }
+
+    private static void forEachPixel(Chunk chunk, PixelVisitor v) {
+        for (int r = 0; r < chunk.runCount; r++) {
+            int x = chunk.runs[r * 3], y = chunk.runs[r * 3 + 1], len = chunk.runs[r * 3 + 2];
+            for (int i = 0; i < len; i++) v.visit(x + i, y, chunk.runStart[r] + i);
+        }
+    }
+
+    // Pixels to repaint, grouped by colour
+    private static final class Changes {
+        final Map<Integer, PixelBatch> byColor = new LinkedHashMap<>();
+
+        void add(int x, int y, int color) {
+            PixelBatch b = byColor.get(color);
+            if (b == null) {
+                b = new PixelBatch();
+                b.reset(color);
+                byColor.put(color, b);
+            }
+            b.add(x, y);
+        }
+
+        List<PixelBatch> apply(TiledCanvas canvas) {
+            for (PixelBatch b : byColor.values())
+                for (int r = 0; r < b.runCount; r++) canvas.fillSpan(b.x(r), b.y(r), b.length(r), b.color);
+            return new ArrayList<>(byColor.values());
+        }
+    }
+}
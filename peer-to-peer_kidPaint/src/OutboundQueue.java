@@ -0,0 +1,206 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Bounded per-client queue of outgoing frames. Broadcasts only enqueue here; each
+// client's own writer drains it, so one slow socket never blocks the rest of the studio.
+// What happens when the queue is full is decided by the SlowConsumerPolicy.
+public class OutboundQueue {
+    enum SlowConsumerPolicy {
+        COALESCE,   // merge queued pixel batches (last colour per pixel wins) up to COALESCE_PIXELS, then fall back to RESYNC
+        RESYNC,     // drop queued canvas updates and send one full sketch instead
+        DISCONNECT  // give up on the client
+    }
+
+    static final int DEFAULT_CAPACITY = Integer.getInteger("kidpaint.outboundQueue", 1024);
+    static final SlowConsumerPolicy DEFAULT_POLICY =
+            SlowConsumerPolicy.valueOf(System.getProperty("kidpaint.slowConsumer", "coalesce").toUpperCase());
+    // Merging runs on the studio loop with the queue locked, so past this many queued pixels a RESYNC is cheaper
+    static final int COALESCE_PIXELS = Integer.getInteger("kidpaint.coalescePixels", 1 << 14);
+
+    private final int capacity;
+    private final SlowConsumerPolicy policy;
+    private final ArrayDeque<Frame> frames = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private boolean closed = false;
+
+    public OutboundQueue() {
+        this(DEFAULT_CAPACITY, DEFAULT_POLICY);
+    }
+
+    public OutboundQueue(int capacity, SlowConsumerPolicy policy) {
+        this.capacity = Math.max(2, capacity);
+        this.policy = policy;
+    }
+
+    // Returns false if the client has to be disconnected
+    public boolean offer(Frame f) {
+        lock.lock();
+        try {
+            if (closed) return false;
+            if (frames.size() >= capacity) {
+                makeRoom();
+                if (frames.size() >= capacity) {
+                    // A pending full sketch will already include this canvas update
+                    if (f.isCanvasUpdate() && frames.contains(Frame.RESYNC)) return true;
+                    closed = true;
+                    frames.clear();
+                    notEmpty.signalAll();
+                    return false;
+                }
+            }
+            frames.add(f);
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Blocks until a frame is available; returns null once the queue is closed
+    public Frame take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (frames.isEmpty() && !closed) notEmpty.await();
+            return frames.poll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Frame poll() {
+        lock.lock();
+        try {
+            return frames.poll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        lock.lock();
+        try {
+            return frames.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            frames.clear();
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Called with the lock held and the queue full
+    private void makeRoom() {
+        switch (policy) {
+            case COALESCE:
+                if (!coalescePixels() || frames.size() >= capacity) resync();
+                break;
+            case RESYNC:
+                resync();
+                break;
+            case DISCONNECT:
+                break;
+        }
+    }
+
+    // Replaces every run of consecutive pixel batches with one batch per colour; false, leaving
+    // the queue as it was, when there are too many pixels for that to be worth it
+    private boolean coalescePixels() {
+        long pixels = 0;
+        for (Frame f : frames) {
+            if (f.pixels == null) continue;
+            PixelBatch b = f.pixels;
+            for (int r = 0; r < b.runCount; r++) {
+                // Each coordinate has 16 bits of a merge key; batches are clipped to the canvas anyway
+                if (b.x(r) < 0 || b.y(r) < 0 || b.x(r) + b.length(r) > 0x10000 || b.y(r) >= 0x10000) return false;
+                pixels += b.length(r);
+            }
+        }
+        if (pixels > COALESCE_PIXELS) return false;
+
+        List<Frame> merged = new ArrayList<>(frames.size());
+        List<Frame> run = new ArrayList<>();
+        for (Frame f : frames) {
+            if (f.pixels != null) {
+                run.add(f);
+            } else {
+                flushRun(run, merged);
+                merged.add(f);
+            }
+        }
+        flushRun(run, merged);
+        frames.clear();
+        frames.addAll(merged);
+        return true;
+    }
+
+    private static void flushRun(List<Frame> run, List<Frame> out) {
+        if (run.size() <= 1) {
+            out.addAll(run);
+            run.clear();
+            return;
+        }
+        // One key per pixel, y then x then the batch that painted it: sorted, pixels come out
+        // row-major, which rebuilds horizontal runs, and each pixel's last colour comes last
+        int n = 0;
+        for (Frame f : run) n += f.pixels.pixelCount();
+        long[] keys = new long[n];
+        n = 0;
+        long version = 0;
+        for (int i = 0; i < run.size(); i++) {
+            version = Math.max(version, run.get(i).canvasVersion);
+            PixelBatch b = run.get(i).pixels;
+            for (int r = 0; r < b.runCount; r++) {
+                long row = (long) b.y(r) << 48 | i;
+                for (int x = b.x(r), end = x + b.length(r); x < end; x++) keys[n++] = row | (long) x << 32;
+            }
+        }
+        Arrays.sort(keys);
+        Map<Integer, PixelBatch> byColor = new LinkedHashMap<>();
+        for (int k = 0; k < n; k++) {
+            if (k + 1 < n && keys[k + 1] >>> 32 == keys[k] >>> 32) continue; // Painted again later
+            int color = run.get((int) keys[k]).pixels.color;
+            PixelBatch b = byColor.get(color);
+            if (b == null) {
+                b = new PixelBatch();
+                b.reset(color);
+                byColor.put(color, b);
+            }
+            b.add((int) (keys[k] >>> 32) & 0xFFFF, (int) (keys[k] >>> 48));
+        }
+        // Only the last merged frame carries the version: the client has it all once that one is written
+        int left = byColor.size();
+        for (PixelBatch b : byColor.values()) out.add(Frame.pixels(b, --left == 0 ? version : 0));
+        run.clear();
+    }
+
+    // Drops all pending canvas updates; a single RESYNC placeholder takes the place of the first one
+    private void resync() {
+        ArrayDeque<Frame> kept = new ArrayDeque<>(frames.size());
+        boolean placed = false;
+        for (Frame f : frames) {
+            if (f.isCanvasUpdate()) {
+                if (!placed) kept.add(Frame.RESYNC);
+                placed = true;
+            } else {
+                kept.add(f);
+            }
+        }
+        frames.clear();
+        frames.addAll(kept);
+    }
+}
@@ -1,92 +1,208 @@
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
-public class PaintServerHost implements Runnable {
-    // Message Constants
-    final int MSG_PIXELS = 1;
-    final int MSG_CHAT = 2;
-    final int MSG_FULL_SKETCH = 3;
-    final int MSG_CLEAR = 4;
-    final int MSG_WHISPER = 8;
-    final int MSG_GAME_OVER = 10;
-    final int MSG_LOBBY_UPDATE = 20;
-    final int MSG_GAME_STATE = 21;
-    final int MSG_YOUR_TURN = 22;
-    final int MSG_LEADERBOARD = 23;
-    final int MSG_MODE = 25; // NEW: Send game mode to clients
-    final int MSG_CLIENT_READY = 50;
-    final int MSG_HOST_START = 51;
-
-    private int port;
+// One studio: its canvas, players, scores and game. Studios are hosted by a StudioManager,
+// which owns the listening port and the I/O threads and hands each connection to the studio it picks.
+// All of the studio's state belongs to its StudioLoop: the handlers below run on that thread only,
+// posted there by ClientConnection (one command per message), the timers and the journal.
+public class PaintServerHost {
+    static final int SUPPORTED_FEATURES = Protocol.FEATURE_COMPACT_PIXELS | Protocol.FEATURE_COMPACT_SNAPSHOT
+            | Protocol.FEATURE_TILES | Protocol.FEATURE_FILL | Protocol.FEATURE_STROKES | Protocol.FEATURE_ACKS
+            | Protocol.FEATURE_REPLACE_CANVAS | Protocol.FEATURE_ROUND_DEADLINE | Protocol.FEATURE_FRAMES | Protocol.FEATURE_VIEWPORT;
+
+    static final int ROUND_SECONDS = 60;
+    // Viewport clients get the whole canvas shrunk to at most this many pixels a side, every OVERVIEW_MS while it changes
+    static final int OVERVIEW_SIZE = 128;
+    static final int OVERVIEW_MS = 500;
+
     private String studioName;
-    private int canvasSize;
+    private final int canvasSize;
     private boolean isDrawGuessMode;
 
-    private ServerSocket serverSocket;
-    private Map<Socket, WorkerThread> clients = new ConcurrentHashMap<>();
-    private Map<String, Integer> scores = new ConcurrentHashMap<>();
-    private Map<String, Boolean> readyStatus = new ConcurrentHashMap<>();
+    private final StudioLoop loop;
+    private Set<ClientConnection> clients = new LinkedHashSet<>();
+    final WireStats wireStats; // Tick coalescing and undo history; socket I/O is counted by the StudioManager
+    private Map<String, Integer> scores = new LinkedHashMap<>();
+    private Map<String, Boolean> readyStatus = new LinkedHashMap<>();
 
     // Game State
-    private int[][] gridData;
+    private TiledCanvas gridData;
+    private final FloodFill floodFill = new FloodFill();
+    private final OpLog opLog; // Every edit goes through here
+    private final Journal journal; // Null unless -Dkidpaint.journal is set
+    // With -Dkidpaint.broadcastTickMs=N, pixel updates are held here and broadcast merged every N ms
+    static final int BROADCAST_TICK_MS = Integer.getInteger("kidpaint.broadcastTickMs", 0);
+    private PixelDelta pending; // Null when updates go out immediately
+    private final Set<ClientConnection> awaitingAck = new LinkedHashSet<>(); // Acks held until the tick broadcasts
     private boolean gameStarted = false;
-    private Timer gameTimer;
-    private int timeRemaining;
+    private ScheduledFuture<?> roundEnd, legacyTicks;
+    private int round; // Timer commands posted for an earlier round are ignored
+    private long roundEndsAt; // System.nanoTime() deadline of the current round
+    private ScheduledFuture<?> overviewTimer; // Started by the first viewport client
+    private TiledCanvas overview;
+    private long overviewVersion = -1; // Canvas version the overview was last built from
 
     private List<String> words = Arrays.asList("APPLE", "TREE", "HOUSE", "CAR", "SUN", "COMPUTER", "CAT", "DOG", "PIZZA", "FISH", "BOOK");
-    private Queue<WorkerThread> drawerQueue = new LinkedList<>();
-    private WorkerThread currentDrawer;
+    private Queue<ClientConnection> drawerQueue = new LinkedList<>();
+    private ClientConnection currentDrawer;
     private String currentWord;
 
-    public PaintServerHost(int port, String name, int size, boolean isDrawGuess) throws IOException {
-        this.port = port;
+    // Use StudioManager.host, which also makes the studio reachable
+    PaintServerHost(String name, int size, boolean isDrawGuess) throws IOException {
         this.studioName = name;
         this.canvasSize = size;
         this.isDrawGuessMode = isDrawGuess;
-        this.gridData = new int[size][size];
-        this.serverSocket = new ServerSocket(port);
-        System.out.println("Server started on port " + port);
+        this.wireStats = WireStats.create("studio " + name);
+        this.journal = Journal.open(name);
+        TiledCanvas restored = journal == null ? null : journal.recover(size);
+        this.gridData = restored != null ? restored : new TiledCanvas(size);
+        this.opLog = new OpLog(gridData);
+        this.loop = new StudioLoop("studio-" + name);
+        loop.start();
+        if (journal != null) journal.start(loop, gridData);
+        if (BROADCAST_TICK_MS > 0) {
+            this.pending = new PixelDelta(gridData);
+            loop.scheduleAtFixedRate(this::flushPending, BROADCAST_TICK_MS);
+        }
+        System.out.println("Studio '" + name + "' opened, " + gridData.footprint());
     }
 
-    @Override
-    public void run() {
-        try {
-            new Thread(new UdpBroadcastListener(12346, studioName, port, isDrawGuessMode)).start();
-            while (true) {
-                Socket socket = serverSocket.accept();
-                WorkerThread t = new WorkerThread(socket, this);
-                clients.put(socket, t);
-                t.start();
-            }
-        } catch (IOException e) { e.printStackTrace(); }
+    String getName() { return studioName; }
+    int canvasSize() { return canvasSize; } // Final, so readers may call it off the studio loop
+
+    // Writes out what the journal still holds; called once the process is stopping
+    void closeJournal() {
+        if (journal != null) journal.close();
     }
 
+    boolean isDrawGuess() { return isDrawGuessMode; }
+
+    // Runs command on the studio loop, after everything posted before it
+    void execute(Runnable command) { loop.execute(command); }
+
+    void addClient(ClientConnection c) { clients.add(c); }
+
     // --- Logic Handling ---
 
-    public synchronized void handlePixelBatch(WorkerThread worker, int color, List<Point> points) {
+    public void handleJoin(ClientConnection worker, String name) {
+        scores.put(name, 0);
+        readyStatus.put(name, false);
+        worker.setUsername(name);
+        broadcastSystemMsg(name + " joined.");
+        broadcastLobbyStatus();
+        sendFullSketch(worker);
+        // NEW: Send game mode to the new client
+        worker.send(Frame.of(new byte[] { Protocol.MSG_MODE, (byte) (isDrawGuessMode ? 1 : 0) }));
+        if (roundEnd != null && (worker.features & Protocol.FEATURE_ROUND_DEADLINE) != 0) worker.send(deadlineFrame());
+    }
+
+    public void handleReady(ClientConnection worker) {
+        readyStatus.put(worker.getUsername(), true);
+        broadcastLobbyStatus();
+    }
+
+    public void handleDisconnect(ClientConnection worker) {
+        clients.remove(worker);
+        awaitingAck.remove(worker);
+        String username = worker.getUsername();
+        if (username != null) {
+            readyStatus.remove(username);
+            broadcastSystemMsg(username + " left.");
+            broadcastLobbyStatus();
+        }
+    }
+
+    public void handlePixelBatch(ClientConnection worker, PixelBatch batch) {
         if (isDrawGuessMode && worker != currentDrawer) return;
 
-        List<Point> validPoints = new ArrayList<>();
-        for (Point p : points) {
-            if (p.x >= 0 && p.x < canvasSize && p.y >= 0 && p.y < canvasSize) {
-                gridData[p.x][p.y] = color;
-                validPoints.add(p);
-            }
+        PixelBatch valid = batch.clipTo(canvasSize, batch); // Decoded for this message alone
+        if (valid.isEmpty()) return;
+        opLog.paint(userOf(worker), valid);
+        journal(valid);
+        if (pending != null) pending.add(valid);
+        else broadcastPixelBatch(valid);
+    }
+
+    // Fills authoritatively here, in the same order every client will see it, then sends clients
+    // that replay fills just the command and everyone else the resulting pixel runs
+    public void handleFill(ClientConnection worker, int x, int y, int color) {
+        if (isDrawGuessMode && worker != currentDrawer) return;
+
+        PixelBatch spans = floodFill.fill(gridData, x, y, color, new PixelBatch());
+        if (spans.isEmpty()) return;
+        flushPending(); // Clients replay the fill, so they need every earlier pixel first
+        opLog.paint(userOf(worker), spans);
+        journal(spans);
+        try {
+            FrameBuffer fb = FrameBuffer.acquire(Protocol.MSG_FILL);
+            fb.writeInt(x);
+            fb.writeInt(y);
+            fb.writeInt(color);
+            broadcast(Frame.command(fb.toByteArray(), Protocol.FEATURE_FILL, spans, gridData.version()));
+        } catch (IOException e) {}
+    }
+
+    public void handleStrokeBegin(ClientConnection worker, int color, int radius, int x, int y) {
+        Stroke s = worker.stroke;
+        s.reset(color, radius);
+        s.add(x, y);
+        worker.stroking = true;
+        worker.strokeOp = null;
+        drawStroke(worker);
+    }
+
+    // piece holds the previous point and then the new ones, see ClientConnection
+    public void handleStrokeExtend(ClientConnection worker, Stroke piece) {
+        if (!worker.stroking) return;
+        Stroke s = worker.stroke;
+        for (int i = 1; i < piece.count; i++) s.add(piece.x(i), piece.y(i));
+        drawStroke(worker);
+    }
+
+    public void handleStrokeEnd(ClientConnection worker) {
+        worker.stroking = false;
+        worker.stroke.count = 0;
+        worker.strokeOp = null;
+    }
+
+    // Paints the pending piece of a stroke and sends it on, as a stroke or as pixel runs
+    private void drawStroke(ClientConnection worker) {
+        Stroke s = worker.stroke;
+        if (isDrawGuessMode && worker != currentDrawer) {
+            s.keepLast();
+            return;
         }
-        if (!validPoints.isEmpty()) {
-            broadcastPixelBatch(color, validPoints);
+        s.clampTo(canvasSize);
+        PixelBatch spans = s.rasterize(canvasSize, new PixelBatch());
+        // The whole stroke is one op, so it is undone in one go
+        if (!spans.isEmpty() && (worker.strokeOp == null || !opLog.extend(worker.strokeOp, spans)))
+            worker.strokeOp = opLog.paint(userOf(worker), spans);
+        journal(spans);
+        if (pending != null) {
+            // Ticks merge strokes too; they reach clients as pixel runs
+            if (!spans.isEmpty()) pending.add(spans);
+            s.keepLast();
+            return;
         }
+        try {
+            FrameBuffer fb = FrameBuffer.acquire(Protocol.MSG_STROKE);
+            Stroke.writeSegment(fb, s);
+            broadcast(Frame.command(fb.toByteArray(), Protocol.FEATURE_STROKES, spans, gridData.version()));
+        } catch (IOException e) {}
+        s.keepLast();
     }
 
-    public synchronized void handleChat(WorkerThread worker, String text) {
+    public void handleChat(ClientConnection worker, String text) {
         if (isDrawGuessMode && gameStarted && currentWord != null) {
             if (worker != currentDrawer && text.equalsIgnoreCase(currentWord)) {
                 broadcastSystemMsg(worker.getUsername() + " GUESSED THE WORD!");
@@ -101,9 +217,9 @@ public class PaintServerHost implements Runnable {
         broadcastChat(worker.getUsername(), text);
     }
 
-    public synchronized void handleWhisper(WorkerThread sender, String targetName, String message) {
-        WorkerThread target = null;
-        for(WorkerThread w : clients.values()) {
+    public void handleWhisper(ClientConnection sender, String targetName, String message) {
+        ClientConnection target = null;
+        for(ClientConnection w : clients) {
             if(w.getUsername().equals(targetName)) {
                 target = w;
                 break;
@@ -118,13 +234,73 @@ public class PaintServerHost implements Runnable {
         }
     }
 
-    public synchronized void handleClear(WorkerThread worker) {
+    public void handleClear(ClientConnection worker) {
+        if (isDrawGuessMode && worker != currentDrawer) return;
+        opLog.clear(userOf(worker));
+        if (journal != null) journal.clear();
+        if (pending != null) {
+            pending.drop();
+            sendHeldAcks();
+        }
+        broadcast(Frame.canvas(new byte[] { Protocol.MSG_CLEAR }, gridData.version()));
+    }
+
+    // A loaded sketch replaces the canvas: a clear, then what fits of it painted as one op.
+    // Everyone gets a fresh snapshot rather than the pixel runs.
+    public void handleReplaceCanvas(ClientConnection worker, TiledCanvas loaded) {
+        if (isDrawGuessMode && worker != currentDrawer) return;
+        replaceCanvas(userOf(worker), loaded);
+    }
+
+    private void replaceCanvas(String user, TiledCanvas loaded) {
+        opLog.clear(user);
+        if (journal != null) journal.clear();
+        List<PixelBatch> batches = SketchFile.colorRuns(loaded, canvasSize);
+        if (!batches.isEmpty()) opLog.paint(user, batches);
+        for (PixelBatch b : batches) journal(b);
+        if (pending != null) {
+            pending.drop();
+            sendHeldAcks();
+        }
+        Map<Integer, Frame> byFeatures = new HashMap<>();
+        for (var c : clients) {
+            if (c.viewport != null) c.send(viewportFrame(c.viewport));
+            else c.send(byFeatures.computeIfAbsent(c.features, this::fullSketchFrame));
+        }
+    }
+
+    // A client panned or zoomed. From now on it is sent what lies in the new viewport, starting with
+    // the tiles it doesn't have: everything outside its previous viewport has gone stale.
+    public void handleViewport(ClientConnection worker, int x, int y, int width, int height) {
+        if ((worker.features & Protocol.FEATURE_VIEWPORT) == 0) return;
+        Viewport before = worker.viewport;
+        Viewport now = Viewport.of(x, y, width, height, canvasSize);
+        if (Objects.equals(before, now)) return;
+        worker.viewport = now;
+        int[] gained = Viewport.tilesGained(before, now, gridData);
+        if (gained.length > 0) worker.send(tilesFrame(gained));
+        if (now != null && overviewTimer == null) overviewTimer = loop.scheduleAtFixedRate(this::sendOverviews, OVERVIEW_MS);
+    }
+
+    public void handleUndo(ClientConnection worker) {
+        if (isDrawGuessMode && worker != currentDrawer) return;
+        broadcastRestored(opLog.undo(userOf(worker)));
+        wireStats.history(opLog.report());
+    }
+
+    public void handleRedo(ClientConnection worker) {
         if (isDrawGuessMode && worker != currentDrawer) return;
-        for(int[] row : gridData) Arrays.fill(row, 0);
-        broadcastPacket(MSG_CLEAR);
+        broadcastRestored(opLog.redo(userOf(worker)));
+        wireStats.history(opLog.report());
+    }
+
+    // Edits are logged per name, so a player who reconnects can still undo their earlier ones.
+    // Round clears have no worker and belong to nobody.
+    private static String userOf(ClientConnection worker) {
+        return worker == null || worker.getUsername() == null ? "" : worker.getUsername();
     }
 
-    public synchronized void handleHostStart() {
+    public void handleHostStart() {
         if (gameStarted) return;
 
         if (isDrawGuessMode && clients.size() < 2) {
@@ -135,20 +311,70 @@ public class PaintServerHost implements Runnable {
         gameStarted = true;
         if (isDrawGuessMode) {
             drawerQueue.clear();
-            drawerQueue.addAll(clients.values());
+            drawerQueue.addAll(clients);
             startNewRound();
         } else {
             // Draw Together Mode: Time -1 signals the UI to hide
             broadcastGameState("Everyone", -1);
             broadcastSystemMsg("Game Started! Draw Together Mode.");
-            for (var c : clients.values()) sendTurn(c, true, "");
+            for (var c : clients) sendTurn(c, true, "");
+        }
+    }
+
+    // --- Headless import / export ---
+
+    // Streams the canvas to a PNG. Not on the studio loop, so a batch that lands meanwhile
+    // may be only partly in the image.
+    public void exportPng(Path file) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file), 1 << 16)) {
+            PngCodec.write(out, gridData);
+        }
+    }
+
+    // Replaces the canvas with a PNG scaled to fit, as if the host had loaded it
+    public void importPng(Path file) throws IOException {
+        TiledCanvas loaded;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file), 1 << 16)) {
+            loaded = PngCodec.read(in, canvasSize);
+        }
+        execute(() -> replaceCanvas("", loaded));
+    }
+
+    // A studio without the JavaFX client:
+    //   java PaintServerHost <name> [size] [--import in.png] [--export out.png]
+    // The import is loaded before anyone joins; the export is written when the process stops.
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.out.println("Usage: PaintServerHost <name> [size] [--import in.png] [--export out.png]");
+            return;
+        }
+        int size = 50; // HostDialog's default
+        String importFile = null, exportFile = null;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("--import") && i + 1 < args.length) importFile = args[++i];
+            else if (args[i].equals("--export") && i + 1 < args.length) exportFile = args[++i];
+            else size = Integer.parseInt(args[i]);
         }
+        StudioManager studios = new StudioManager(KidPaint2.SERVER_PORT);
+        PaintServerHost server = studios.host(args[0], size, false);
+        if (importFile != null) server.importPng(Paths.get(importFile));
+        if (exportFile != null) {
+            Path out = Paths.get(exportFile);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    server.exportPng(out);
+                    System.out.println("Canvas exported to " + out);
+                } catch (IOException e) { e.printStackTrace(); }
+            }));
+        }
+        studios.run();
     }
 
     // --- Game Loop ---
 
     private void startNewRound() {
-        if (gameTimer != null) gameTimer.cancel();
+        cancelRoundTimers();
+        round++;
         handleClear(null);
 
         if (drawerQueue.isEmpty()) {
@@ -158,7 +384,7 @@ public class PaintServerHost implements Runnable {
             readyStatus.replaceAll((k, v) -> false);
             broadcastLobbyStatus(); // Update clients with grey circles
 
-            broadcastPacket(MSG_GAME_OVER);
+            broadcastPacket(Protocol.MSG_GAME_OVER);
             gameStarted = false;
             return;
         }
@@ -167,59 +393,162 @@ public class PaintServerHost implements Runnable {
         currentWord = words.get(new Random().nextInt(words.size()));
         broadcastSystemMsg("New Round! Drawer is " + currentDrawer.getUsername());
 
-        for(var c : clients.values()) {
+        for(var c : clients) {
             if (c == currentDrawer) sendTurn(c, true, currentWord);
             else sendTurn(c, false, "");
         }
 
-        timeRemaining = 60;
-        gameTimer = new Timer();
-        gameTimer.scheduleAtFixedRate(new TimerTask() {
-            public void run() {
-                timeRemaining--;
-                broadcastGameState(currentDrawer.getUsername(), timeRemaining);
-                if (timeRemaining <= 0) {
-                    broadcastSystemMsg("Time's Up! The word was " + currentWord);
-                    startNewRound();
-                }
-            }
-        }, 0, 1000);
+        // One timer for the round on the shared scheduler; clients that understand deadlines
+        // count down themselves, the rest still get a MSG_GAME_STATE every second
+        int thisRound = round;
+        roundEndsAt = System.nanoTime() + ROUND_SECONDS * 1_000_000_000L;
+        roundEnd = loop.schedule(() -> roundTimedOut(thisRound), ROUND_SECONDS * 1000L);
+        Frame deadline = deadlineFrame();
+        boolean legacy = false;
+        for (var c : clients) {
+            if ((c.features & Protocol.FEATURE_ROUND_DEADLINE) != 0) c.send(deadline);
+            else legacy = true;
+        }
+        if (legacy) {
+            sendLegacyTime(thisRound);
+            legacyTicks = loop.scheduleAtFixedRate(() -> sendLegacyTime(thisRound), 1000);
+        }
     }
 
-    // --- Broadcasting ---
+    private void roundTimedOut(int timerRound) {
+        if (timerRound != round) return; // The word was guessed while this was queued
+        broadcastSystemMsg("Time's Up! The word was " + currentWord);
+        startNewRound();
+    }
 
-    private void broadcastPixelBatch(int color, List<Point> points) {
+    private void sendLegacyTime(int timerRound) {
+        if (timerRound != round) return;
         try {
-            java.io.ByteArrayOutputStream baos = new java.io.ByteArrayOutputStream();
-            DataOutputStream dos = new DataOutputStream(baos);
-            dos.write(MSG_PIXELS);
-            dos.writeInt(color);
-            dos.writeInt(points.size());
-            for (Point p : points) {
-                dos.writeInt(p.x);
-                dos.writeInt(p.y);
+            FrameBuffer fb = FrameBuffer.acquire(Protocol.MSG_GAME_STATE);
+            fb.writeUTF(currentDrawer.getUsername());
+            fb.writeInt(secondsLeft());
+            Frame f = fb.toFrame();
+            for (var c : clients) if ((c.features & Protocol.FEATURE_ROUND_DEADLINE) == 0) c.send(f);
+        } catch (IOException e) {}
+    }
+
+    private void cancelRoundTimers() {
+        if (roundEnd != null) roundEnd.cancel(false);
+        if (legacyTicks != null) legacyTicks.cancel(false);
+        roundEnd = legacyTicks = null;
+    }
+
+    private int secondsLeft() {
+        return (int) Math.max(0, (roundEndsAt - System.nanoTime() + 999_999_999L) / 1_000_000_000L);
+    }
+
+    private Frame deadlineFrame() {
+        try {
+            FrameBuffer fb = FrameBuffer.acquire(Protocol.MSG_ROUND_DEADLINE);
+            fb.writeUTF(currentDrawer.getUsername());
+            fb.writeInt((int) Math.max(0, (roundEndsAt - System.nanoTime()) / 1_000_000L));
+            return fb.toFrame();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // --- Broadcasting ---
+    // These only enqueue one shared Frame per message; each client's writer does the socket I/O.
+
+    // Clients with a viewport get the part of a pixel update inside it, if any, as one frame per distinct viewport
+    private void broadcast(Frame frame) {
+        Map<Viewport, Frame> clipped = null;
+        for (var c : clients) {
+            if (c.viewport == null || frame.pixels == null) {
+                c.send(frame);
+                continue;
             }
-            byte[] data = baos.toByteArray();
-            for (var c : clients.values()) c.getOutputStream().write(data);
+            if (clipped == null) clipped = new HashMap<>();
+            Frame f;
+            if (clipped.containsKey(c.viewport)) f = clipped.get(c.viewport);
+            else {
+                PixelBatch inside = c.viewport.clip(frame.pixels);
+                clipped.put(c.viewport, f = inside == null ? null : frame.pixelsOnly(inside));
+            }
+            if (f != null) c.send(f);
+        }
+    }
+
+    // Broadcasts the pixels touched since the last tick, one batch per colour, each built once for all clients
+    private void flushPending() {
+        if (pending == null || pending.isEmpty()) return;
+        int updates = pending.rawUpdates();
+        long pixels = pending.rawPixels();
+        List<PixelBatch> merged = pending.drain();
+        long version = gridData.version();
+        long mergedPixels = 0;
+        // Only the last frame carries the version: the client has it all once that one is written
+        for (int i = 0; i < merged.size(); i++) {
+            PixelBatch b = merged.get(i);
+            mergedPixels += b.pixelCount();
+            broadcast(Frame.pixels(b, i == merged.size() - 1 ? version : 0));
+        }
+        wireStats.coalesced(updates, pixels, merged.size(), mergedPixels);
+        sendHeldAcks();
+    }
+
+    // Called after each drawing message from worker. The ack follows the message's own echo
+    // in the worker's queue, so a predicting client never reverts to a state without it.
+    public void acknowledge(ClientConnection worker, int seq) {
+        if ((worker.features & Protocol.FEATURE_ACKS) == 0) return;
+        worker.ackSeq = seq;
+        if (pending != null && !pending.isEmpty()) awaitingAck.add(worker);
+        else sendAck(worker);
+    }
+
+    private void sendHeldAcks() {
+        for (ClientConnection c : awaitingAck) sendAck(c);
+        awaitingAck.clear();
+    }
+
+    private void sendAck(ClientConnection worker) {
+        try {
+            FrameBuffer fb = FrameBuffer.acquire(Protocol.MSG_ACK);
+            fb.writeInt(worker.ackSeq);
+            worker.send(fb.toFrame());
         } catch (IOException e) {}
     }
 
+    private void journal(PixelBatch applied) {
+        if (journal != null) journal.pixels(applied);
+    }
+
+    private void broadcastPixelBatch(PixelBatch batch) {
+        broadcast(Frame.pixels(batch, gridData.version()));
+    }
+
+    // Pixels an undo or redo changed, already painted, one batch per colour
+    private void broadcastRestored(List<PixelBatch> batches) {
+        if (batches.isEmpty()) return;
+        for (PixelBatch b : batches) journal(b);
+        if (pending != null) {
+            for (PixelBatch b : batches) pending.add(b);
+            return;
+        }
+        long version = gridData.version();
+        for (int i = 0; i < batches.size(); i++)
+            broadcast(Frame.pixels(batches.get(i), i == batches.size() - 1 ? version : 0));
+    }
+
     private void broadcastChat(String name, String msg) {
         try {
-            java.io.ByteArrayOutputStream baos = new java.io.ByteArrayOutputStream();
-            DataOutputStream dos = new DataOutputStream(baos);
-            dos.write(MSG_CHAT);
-            dos.writeUTF(name + ": " + msg);
-            byte[] data = baos.toByteArray();
-            for (var c : clients.values()) c.getOutputStream().write(data);
+            FrameBuffer fb = FrameBuffer.acquire(Protocol.MSG_CHAT);
+            fb.writeUTF(name + ": " + msg);
+            broadcast(fb.toFrame());
         } catch (IOException e) {}
     }
 
-    private void sendDirectMessage(WorkerThread w, String msg) {
+    private void sendDirectMessage(ClientConnection w, String msg) {
         try {
-            DataOutputStream out = w.getOutputStream();
-            out.write(MSG_CHAT);
-            out.writeUTF(msg);
+            FrameBuffer fb = FrameBuffer.acquire(Protocol.MSG_CHAT);
+            fb.writeUTF(msg);
+            w.send(fb.toFrame());
         } catch(IOException e){}
     }
 
@@ -227,161 +556,145 @@ public class PaintServerHost implements Runnable {
 
     private void broadcastGameState(String drawer, int time) {
         try {
-            for (var c : clients.values()) {
-                DataOutputStream out = c.getOutputStream();
-                out.write(MSG_GAME_STATE);
-                out.writeUTF(drawer);
-                out.writeInt(time);
-            }
+            FrameBuffer fb = FrameBuffer.acquire(Protocol.MSG_GAME_STATE);
+            fb.writeUTF(drawer);
+            fb.writeInt(time);
+            broadcast(fb.toFrame());
         } catch (IOException e) {}
     }
 
     private void broadcastPacket(int type) {
-        try { for (var c : clients.values()) c.getOutputStream().write(type); } catch (IOException e) {}
+        broadcast(Frame.of(new byte[] { (byte) type }));
     }
 
     private void broadcastLobbyStatus() {
         try {
-            java.io.ByteArrayOutputStream baos = new java.io.ByteArrayOutputStream();
-            DataOutputStream dos = new DataOutputStream(baos);
-            dos.write(MSG_LOBBY_UPDATE);
-            dos.writeInt(readyStatus.size());
+            FrameBuffer fb = FrameBuffer.acquire(Protocol.MSG_LOBBY_UPDATE);
+            fb.writeInt(readyStatus.size());
             for(var entry : readyStatus.entrySet()) {
-                dos.writeUTF(entry.getKey());
-                dos.writeBoolean(entry.getValue());
+                fb.writeUTF(entry.getKey());
+                fb.writeBoolean(entry.getValue());
             }
-            byte[] data = baos.toByteArray();
-            for(var c : clients.values()) c.getOutputStream().write(data);
+            broadcast(fb.toFrame());
         } catch(Exception e) {}
     }
 
     private void broadcastLeaderboard() {
         try {
             List<String> list = scores.entrySet().stream().map(e -> e.getKey() + ": " + e.getValue()).collect(Collectors.toList());
-            java.io.ByteArrayOutputStream baos = new java.io.ByteArrayOutputStream();
-            DataOutputStream dos = new DataOutputStream(baos);
-            dos.write(MSG_LEADERBOARD);
-            dos.writeInt(list.size());
-            for(String s : list) dos.writeUTF(s);
-            byte[] data = baos.toByteArray();
-            for(var c : clients.values()) c.getOutputStream().write(data);
+            FrameBuffer fb = FrameBuffer.acquire(Protocol.MSG_LEADERBOARD);
+            fb.writeInt(list.size());
+            for(String s : list) fb.writeUTF(s);
+            broadcast(fb.toFrame());
         } catch(Exception e){}
     }
 
-    private void sendTurn(WorkerThread w, boolean turn, String word) {
+    private void sendTurn(ClientConnection w, boolean turn, String word) {
         try {
-            DataOutputStream out = w.getOutputStream();
-            out.write(MSG_YOUR_TURN);
-            out.writeBoolean(turn);
-            out.writeUTF(word);
+            FrameBuffer fb = FrameBuffer.acquire(Protocol.MSG_YOUR_TURN);
+            fb.writeBoolean(turn);
+            fb.writeUTF(word);
+            w.send(fb.toFrame());
         } catch(IOException e){}
     }
 
-    private void sendFullSketch(WorkerThread w) {
+    // A viewport client on a canvas bigger than its overview starts with just the overview, and
+    // gets tiles once it says which part it looks at
+    private void sendFullSketch(ClientConnection w) {
+        if ((w.features & Protocol.FEATURE_VIEWPORT) != 0 && canvasSize > OVERVIEW_SIZE) {
+            w.viewport = Viewport.NONE;
+            w.send(overviewFrame());
+            return;
+        }
+        w.send(fullSketchFrame(w.features));
+    }
+
+    // Also used, through resync, by writers to resync a client whose queue overflowed
+    Frame fullSketchFrame(int features) {
         try {
-            DataOutputStream out = w.getOutputStream();
-            out.write(MSG_FULL_SKETCH);
-            out.writeInt(canvasSize);
+            if ((features & Protocol.FEATURE_COMPACT_SNAPSHOT) != 0) {
+                FrameBuffer fb = FrameBuffer.acquire(Protocol.MSG_FULL_SKETCH_COMPACT);
+                SnapshotCodec.write(fb, gridData);
+                return Frame.canvas(fb.toByteArray(), gridData.version());
+            }
+            FrameBuffer fb = FrameBuffer.acquire(Protocol.MSG_FULL_SKETCH);
+            fb.writeInt(canvasSize);
             for(int i=0; i<canvasSize; i++)
                 for(int j=0; j<canvasSize; j++)
-                    out.writeInt(gridData[i][j]);
-        } catch(IOException e){}
+                    fb.writeInt(gridData.get(i, j));
+            return Frame.canvas(fb.toByteArray(), gridData.version());
+        } catch(IOException e){
+            throw new IllegalStateException(e);
+        }
     }
 
-    // --- Helpers ---
+    // For blocking writers: built on the loop while the writer waits, which it never does for long
+    // since the loop only enqueues. The writer owns sentVersion, and is blocked here.
+    Frame resync(ClientConnection c) {
+        long knownVersion = c.sentVersion;
+        return loop.call(() -> resyncFrame(c, knownVersion));
+    }
 
-    public class Point { int x, y; Point(int x, int y){this.x=x;this.y=y;}}
+    // For writers that must not wait, since they serve other studios too: the frame is built
+    // on the loop and handed to 'done' there. The writer holds its queue back until then.
+    void resyncLater(ClientConnection c, Consumer<Frame> done) {
+        long knownVersion = c.sentVersion;
+        loop.execute(() -> done.accept(resyncFrame(c, knownVersion)));
+    }
 
-    class WorkerThread extends Thread {
-        Socket socket;
-        PaintServerHost server;
-        DataOutputStream out;
-        String username;
+    // Resync for a client that has every canvas change up to knownVersion: just the newer tiles.
+    // A viewport client gets all of its viewport, since what was dropped may have been tiles it was just sent.
+    private Frame resyncFrame(ClientConnection c, long knownVersion) {
+        if (c.viewport != null) return viewportFrame(c.viewport);
+        if ((c.features & Protocol.FEATURE_TILES) == 0 || knownVersion <= 0) return fullSketchFrame(c.features);
+        return tilesFrame(gridData.tilesNewerThan(knownVersion));
+    }
 
-        public WorkerThread(Socket s, PaintServerHost h) throws IOException {
-            this.socket = s; this.server = h; this.out = new DataOutputStream(s.getOutputStream());
-        }
-        public String getUsername() { return username; }
-        public void setUsername(String u) { this.username = u; }
-        public DataOutputStream getOutputStream() { return out; }
-        public Socket getSocket() { return socket; }
-
-        public void run() {
-            try (DataInputStream in = new DataInputStream(socket.getInputStream())) {
-                while (true) {
-                    int type = in.read();
-                    switch (type) {
-                        case 0: // NAME
-                            String name = in.readUTF();
-                            server.scores.put(name, 0);
-                            server.readyStatus.put(name, false);
-                            setUsername(name);
-                            server.broadcastSystemMsg(name + " joined.");
-                            server.broadcastLobbyStatus();
-                            server.sendFullSketch(this);
-                            // NEW: Send game mode to the new client
-                            out.write(MSG_MODE);
-                            out.writeBoolean(server.isDrawGuessMode);
-                            break;
-                        case MSG_PIXELS:
-                            int color = in.readInt();
-                            int count = in.readInt();
-                            List<Point> pts = new ArrayList<>();
-                            for(int i=0; i<count; i++) pts.add(new Point(in.readInt(), in.readInt()));
-                            server.handlePixelBatch(this, color, pts);
-                            break;
-                        case MSG_CHAT: server.handleChat(this, in.readUTF()); break;
-                        case MSG_WHISPER:
-                            String target = in.readUTF();
-                            String msg = in.readUTF();
-                            server.handleWhisper(this, target, msg);
-                            break;
-                        case MSG_CLEAR: server.handleClear(this); break;
-                        case MSG_CLIENT_READY:
-                            server.readyStatus.put(username, true);
-                            server.broadcastLobbyStatus();
-                            break;
-                        case MSG_HOST_START: server.handleHostStart(); break;
-                    }
-                }
-            } catch (IOException e) {
-                server.clients.remove(socket);
-                if(username!=null) {
-                    server.readyStatus.remove(username);
-                    server.broadcastSystemMsg(username + " left.");
-                    server.broadcastLobbyStatus();
-                }
-            }
+    private Frame viewportFrame(Viewport v) {
+        return v == Viewport.NONE ? overviewFrame() : tilesFrame(Viewport.tilesGained(Viewport.NONE, v, gridData));
+    }
+
+    private Frame tilesFrame(int[] tiles) {
+        try {
+            FrameBuffer fb = FrameBuffer.acquire(Protocol.MSG_TILES);
+            SnapshotCodec.writeTiles(fb, gridData, tiles);
+            return Frame.canvas(fb.toByteArray(), gridData.version());
+        } catch(IOException e){
+            throw new IllegalStateException(e);
         }
     }
 
-    class UdpBroadcastListener implements Runnable {
-        int udpPort;
-        String name;
-        int tcpPort;
-        boolean isDrawGuess;
+    // --- Overviews ---
 
-        UdpBroadcastListener(int udpPort, String name, int tcpPort, boolean isDrawGuess) {
-            this.udpPort = udpPort;
-            this.name = name;
-            this.tcpPort = tcpPort;
-            this.isDrawGuess = isDrawGuess;
+    private void sendOverviews() {
+        if (gridData.version() == overviewVersion) return;
+        Frame frame = null;
+        for (var c : clients) {
+            if (c.viewport == null) continue;
+            if (frame == null) frame = overviewFrame();
+            c.send(frame);
         }
+    }
 
-        public void run() {
-            try (DatagramSocket socket = new DatagramSocket(udpPort)) {
-                byte[] buf = new byte[1024];
-                while(true) {
-                    DatagramPacket packet = new DatagramPacket(buf, buf.length);
-                    socket.receive(packet);
-                    String msg = new String(packet.getData(), 0, packet.getLength());
-                    if(msg.equals("KIDPAINT_DISCOVERY_REQUEST")) {
-                        String modeStr = isDrawGuess ? "Draw & Guess" : "Draw Together";
-                        String reply = "KIDPAINT_STUDIO:" + name + ":" + tcpPort + ":" + modeStr;
-                        socket.send(new DatagramPacket(reply.getBytes(), reply.length(), packet.getAddress(), packet.getPort()));
-                    }
-                }
-            } catch(Exception e){}
+    // The canvas shrunk by a whole factor to at most OVERVIEW_SIZE a side, one sample from the middle of each block
+    private Frame overviewFrame() {
+        int scale = (canvasSize + OVERVIEW_SIZE - 1) / OVERVIEW_SIZE;
+        int size = (canvasSize + scale - 1) / scale;
+        if (overview == null || overview.size() != size) overview = new TiledCanvas(size);
+        int[] row = new int[canvasSize];
+        for (int oy = 0; oy < size; oy++) {
+            gridData.copyRow(Math.min(oy * scale + scale / 2, canvasSize - 1), row);
+            for (int ox = 0; ox < size; ox++) overview.set(ox, oy, row[Math.min(ox * scale + scale / 2, canvasSize - 1)]);
+        }
+        overviewVersion = gridData.version();
+        try {
+            FrameBuffer fb = FrameBuffer.acquire(Protocol.MSG_OVERVIEW);
+            fb.writeInt(canvasSize);
+            fb.writeInt(scale);
+            SnapshotCodec.write(fb, overview);
+            return fb.toFrame();
+        } catch(IOException e){
+            throw new IllegalStateException(e);
         }
     }
-}
\ No newline at end of file
+}
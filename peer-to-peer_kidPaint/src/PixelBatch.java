@@ -0,0 +1,75 @@
+import java.util.Arrays;
+
+// Pixels painted in one colour, kept as horizontal runs of (x, y, length) so spans
+// from fills and sketch loads stay compact. Reused for decoding on the hot path.
+public final class PixelBatch {
+    int color;
+    int[] runs;
+    int runCount;
+
+    public PixelBatch() {
+        this(16);
+    }
+
+    public PixelBatch(int runCapacity) {
+        runs = new int[Math.max(1, runCapacity) * 3];
+    }
+
+    void reset(int color) {
+        this.color = color;
+        this.runCount = 0;
+    }
+
+    // Adds one pixel, extending the previous run when it continues it to the right
+    void add(int x, int y) {
+        if (runCount > 0) {
+            int i = (runCount - 1) * 3;
+            if (runs[i + 1] == y && runs[i] + runs[i + 2] == x) {
+                runs[i + 2]++;
+                return;
+            }
+        }
+        addSpan(x, y, 1);
+    }
+
+    void addSpan(int x, int y, int length) {
+        if (length <= 0) return;
+        if (runCount * 3 == runs.length) runs = Arrays.copyOf(runs, runs.length * 2);
+        int i = runCount * 3;
+        runs[i] = x;
+        runs[i + 1] = y;
+        runs[i + 2] = length;
+        runCount++;
+    }
+
+    int x(int run) { return runs[run * 3]; }
+    int y(int run) { return runs[run * 3 + 1]; }
+    int length(int run) { return runs[run * 3 + 2]; }
+
+    int pixelCount() {
+        int n = 0;
+        for (int r = 0; r < runCount; r++) n += runs[r * 3 + 2];
+        return n;
+    }
+
+    boolean isEmpty() { return runCount == 0; }
+
+    // Copy of the runs clipped to a size x size canvas
+    PixelBatch clipped(int size) {
+        return clipTo(size, new PixelBatch(runCount));
+    }
+
+    // The same into a reused batch, which may be this one, for decoding without allocating
+    PixelBatch clipTo(int size, PixelBatch out) {
+        int n = runCount; // Runs are only ever written at or before the one being read
+        out.reset(color);
+        for (int r = 0; r < n; r++) {
+            int x = x(r), y = y(r);
+            if (y < 0 || y >= size) continue;
+            int end = (int) Math.min((long) x + length(r), size);
+            x = Math.max(x, 0);
+            if (end > x) out.addSpan(x, y, end - x);
+        }
+        return out;
+    }
+}
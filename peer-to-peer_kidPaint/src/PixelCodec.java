@@ -0,0 +1,159 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+// Wire formats for pixel batches.
+//
+// Legacy MSG_PIXELS:  int color, int count, count x (int x, int y)             8 bytes per pixel
+// MSG_PIXELS_COMPACT: int byteLength, then
+//                     int color, byte mode, varint runCount, runCount runs of
+//                       mode DELTA: zigzag varint dx, zigzag varint dy  (from the previous run's start)
+//                       mode ABS8 / ABS16: x, y as 1 or 2 unsigned bytes
+//                     each followed by varint (length - 1)
+// The encoder picks whichever mode is smaller for the batch, so strokes cost about
+// 3 bytes per point and spans from fills a few bytes per row.
+public final class PixelCodec {
+    static final int MODE_DELTA = 0;
+    static final int MODE_ABS8 = 1;
+    static final int MODE_ABS16 = 2;
+
+    private PixelCodec() {}
+
+    // --- Legacy ---
+
+    static void writeLegacy(DataOutput out, PixelBatch b) throws IOException {
+        out.writeInt(b.color);
+        out.writeInt(b.pixelCount());
+        for (int r = 0; r < b.runCount; r++) {
+            int x = b.x(r), y = b.y(r), len = b.length(r);
+            for (int i = 0; i < len; i++) {
+                out.writeInt(x + i);
+                out.writeInt(y);
+            }
+        }
+    }
+
+    static void readLegacy(DataInput in, PixelBatch b) throws IOException {
+        b.reset(in.readInt());
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) b.add(in.readInt(), in.readInt());
+    }
+
+    // --- Compact ---
+
+    // Writes the byte length prefix followed by the compact body
+    static void writeCompact(DataOutput out, PixelBatch b) throws IOException {
+        int mode = chooseMode(b);
+        out.writeInt(compactBodySize(b, mode));
+        out.writeInt(b.color);
+        out.writeByte(mode);
+        writeVarint(out, b.runCount);
+        int px = 0, py = 0;
+        for (int r = 0; r < b.runCount; r++) {
+            int x = b.x(r), y = b.y(r);
+            if (mode == MODE_DELTA) {
+                writeVarint(out, zigzag(x - px));
+                writeVarint(out, zigzag(y - py));
+                px = x;
+                py = y;
+            } else if (mode == MODE_ABS8) {
+                out.writeByte(x);
+                out.writeByte(y);
+            } else {
+                out.writeShort(x);
+                out.writeShort(y);
+            }
+            writeVarint(out, b.length(r) - 1);
+        }
+    }
+
+    // Reads a body written by writeCompact, including its length prefix
+    static void readCompact(DataInput in, PixelBatch b) throws IOException {
+        in.readInt(); // byteLength, only needed by readers that frame or skip messages
+        b.reset(in.readInt());
+        int mode = in.readUnsignedByte();
+        int runs = readVarint(in);
+        int px = 0, py = 0;
+        for (int r = 0; r < runs; r++) {
+            int x, y;
+            if (mode == MODE_DELTA) {
+                x = px + unzigzag(readVarint(in));
+                y = py + unzigzag(readVarint(in));
+                px = x;
+                py = y;
+            } else if (mode == MODE_ABS8) {
+                x = in.readUnsignedByte();
+                y = in.readUnsignedByte();
+            } else if (mode == MODE_ABS16) {
+                x = in.readUnsignedShort();
+                y = in.readUnsignedShort();
+            } else {
+                throw new IOException("Unknown pixel batch mode " + mode);
+            }
+            b.addSpan(x, y, readVarint(in) + 1);
+        }
+    }
+
+    static int chooseMode(PixelBatch b) {
+        int max = 0;
+        int deltaBytes = 0;
+        int px = 0, py = 0;
+        for (int r = 0; r < b.runCount; r++) {
+            int x = b.x(r), y = b.y(r);
+            max = Math.max(max, Math.max(x, y));
+            if (x < 0 || y < 0) max = Integer.MAX_VALUE;
+            deltaBytes += varintSize(zigzag(x - px)) + varintSize(zigzag(y - py));
+            px = x;
+            py = y;
+        }
+        if (max <= 0xFF && 2 * b.runCount <= deltaBytes) return MODE_ABS8;
+        if (max <= 0xFFFF && 4 * b.runCount < deltaBytes) return MODE_ABS16;
+        return MODE_DELTA;
+    }
+
+    private static int compactBodySize(PixelBatch b, int mode) {
+        int size = 4 + 1 + varintSize(b.runCount);
+        int px = 0, py = 0;
+        for (int r = 0; r < b.runCount; r++) {
+            int x = b.x(r), y = b.y(r);
+            if (mode == MODE_DELTA) size += varintSize(zigzag(x - px)) + varintSize(zigzag(y - py));
+            else size += mode == MODE_ABS8 ? 2 : 4;
+            size += varintSize(b.length(r) - 1);
+            px = x;
+            py = y;
+        }
+        return size;
+    }
+
+    // --- Varints ---
+
+    static void writeVarint(DataOutput out, int v) throws IOException {
+        while ((v & ~0x7F) != 0) {
+            out.writeByte((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.writeByte(v);
+    }
+
+    static int readVarint(DataInput in) throws IOException {
+        int v = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            v |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return v;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    static int varintSize(int v) {
+        int n = 1;
+        while ((v & ~0x7F) != 0) {
+            v >>>= 7;
+            n++;
+        }
+        return n;
+    }
+
+    static int zigzag(int v) { return (v << 1) ^ (v >> 31); }
+    static int unzigzag(int v) { return (v >>> 1) ^ -(v & 1); }
+}
@@ -0,0 +1,76 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Canvas pixels painted since the last broadcast tick. Only which pixels were touched is
+// kept (a bitset, plus their runs in first-touched order); the colour is read back from the
+// canvas when the tick drains the delta, which is exactly the last colour written to each.
+// Studio loop only.
+public final class PixelDelta {
+    private final TiledCanvas canvas;
+    private final long[] touched;
+    private final PixelBatch runs = new PixelBatch();
+    private int rawUpdates;
+    private long rawPixels;
+
+    public PixelDelta(TiledCanvas canvas) {
+        this.canvas = canvas;
+        long size = canvas.size();
+        this.touched = new long[(int) ((size * size + 63) >> 6)];
+    }
+
+    boolean isEmpty() { return runs.isEmpty(); }
+    int rawUpdates() { return rawUpdates; }
+    long rawPixels() { return rawPixels; }
+
+    // Records the runs of a batch already applied to the canvas and clipped to it
+    void add(PixelBatch b) {
+        rawUpdates++;
+        int size = canvas.size();
+        for (int r = 0; r < b.runCount; r++) {
+            int y = b.y(r), len = b.length(r);
+            rawPixels += len;
+            long base = (long) y * size;
+            for (int x = b.x(r), end = x + len; x < end; x++) {
+                long i = base + x;
+                int w = (int) (i >> 6);
+                if ((touched[w] & (1L << i)) != 0) continue;
+                touched[w] |= 1L << i;
+                runs.add(x, y);
+            }
+        }
+    }
+
+    // One batch per current colour covering every touched pixel; empties the delta
+    List<PixelBatch> drain() {
+        Map<Integer, PixelBatch> byColor = new LinkedHashMap<>();
+        for (int r = 0; r < runs.runCount; r++) {
+            int y = runs.y(r);
+            for (int x = runs.x(r), end = x + runs.length(r); x < end; x++) {
+                int color = canvas.get(x, y);
+                PixelBatch b = byColor.get(color);
+                if (b == null) {
+                    b = new PixelBatch();
+                    b.reset(color);
+                    byColor.put(color, b);
+                }
+                b.add(x, y);
+            }
+        }
+        drop(); // Also clears the bits
+        return new ArrayList<>(byColor.values());
+    }
+
+    // Forgets the pending pixels, e.g. when a clear makes them moot
+    void drop() {
+        for (int r = 0; r < runs.runCount; r++) {
+            long base = (long) runs.y(r) * canvas.size();
+            for (long i = base + runs.x(r), end = i + runs.length(r); i < end; i++)
+                touched[(int) (i >> 6)] &= ~(1L << i);
+        }
+        runs.reset(0);
+        rawUpdates = 0;
+        rawPixels = 0;
+    }
+}
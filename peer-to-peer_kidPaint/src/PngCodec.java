@@ -0,0 +1,366 @@
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+// PNG export and import that stream one row at a time between the canvas and the file, so
+// no full-size Image or BufferedImage is ever built.
+//
+// Export writes 8-bit RGBA, unfiltered rows deflated straight into 64 KB IDAT chunks; blank
+// pixels (0) become fully transparent. Import reads any non-interlaced PNG (greyscale,
+// RGB, palette, with or without alpha, 1 to 16 bits), unfiltering row by row as the IDAT
+// data inflates. Pixels less than half opaque become blank, the rest opaque. An image of a
+// different size is scaled (nearest neighbour, aspect kept) to fit the canvas, top left.
+public final class PngCodec {
+    private static final byte[] SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+    private static final int IHDR = 0x49484452, PLTE = 0x504C5445, TRNS = 0x74524E53, IDAT = 0x49444154, IEND = 0x49454E44;
+    private static final int CHUNK = 64 * 1024;
+    private static final long MAX_PIXELS = 1L << 28;
+
+    private PngCodec() {}
+
+    // --- Export ---
+
+    static void write(OutputStream out, TiledCanvas canvas) throws IOException {
+        int size = canvas.size();
+        DataOutputStream data = new DataOutputStream(out);
+        data.write(SIGNATURE);
+        ChunkWriter ihdr = new ChunkWriter(data, IHDR, 13);
+        ihdr.writeInt(size);
+        ihdr.writeInt(size);
+        ihdr.write(new byte[] { 8, 6, 0, 0, 0 }); // 8 bit RGBA, deflate, no filter method, not interlaced
+        ihdr.close();
+
+        ChunkWriter idat = new ChunkWriter(data, IDAT, CHUNK);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            DeflaterOutputStream z = new DeflaterOutputStream(idat, deflater, CHUNK);
+            int[] row = new int[size];
+            byte[] bytes = new byte[1 + 4 * size]; // Filter type 0 (none), then RGBA
+            for (int y = 0; y < size; y++) {
+                canvas.copyRow(y, row);
+                for (int x = 0, i = 1; x < size; x++, i += 4) {
+                    int c = row[x];
+                    bytes[i] = (byte) (c >> 16);
+                    bytes[i + 1] = (byte) (c >> 8);
+                    bytes[i + 2] = (byte) c;
+                    bytes[i + 3] = c == 0 ? 0 : (byte) 0xFF;
+                }
+                z.write(bytes);
+            }
+            z.finish();
+        } finally {
+            deflater.end();
+        }
+        idat.close();
+        new ChunkWriter(data, IEND, 0).close();
+        data.flush();
+    }
+
+    // Buffers up to one chunk of data, then writes it with its length, type and CRC
+    private static final class ChunkWriter extends OutputStream {
+        private final DataOutputStream out;
+        private final int type;
+        private final byte[] buf;
+        private final CRC32 crc = new CRC32();
+        private int n;
+        private boolean written;
+
+        ChunkWriter(DataOutputStream out, int type, int capacity) {
+            this.out = out;
+            this.type = type;
+            this.buf = new byte[Math.max(capacity, 1)];
+        }
+
+        void writeInt(int v) throws IOException {
+            write(v >>> 24);
+            write(v >>> 16);
+            write(v >>> 8);
+            write(v);
+        }
+
+        @Override public void write(int b) throws IOException {
+            if (n == buf.length) emit();
+            buf[n++] = (byte) b;
+        }
+
+        @Override public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (n == buf.length) emit();
+                int k = Math.min(len, buf.length - n);
+                System.arraycopy(b, off, buf, n, k);
+                n += k;
+                off += k;
+                len -= k;
+            }
+        }
+
+        private void emit() throws IOException {
+            out.writeInt(n);
+            out.writeInt(type);
+            out.write(buf, 0, n);
+            crc.reset();
+            crc.update(type >>> 24);
+            crc.update(type >>> 16);
+            crc.update(type >>> 8);
+            crc.update(type);
+            crc.update(buf, 0, n);
+            out.writeInt((int) crc.getValue());
+            n = 0;
+            written = true;
+        }
+
+        // Writes what is left; an empty chunk only if nothing was written at all (IEND)
+        @Override public void close() throws IOException {
+            if (n > 0 || !written) emit();
+        }
+    }
+
+    // --- Import ---
+
+    // Reads a PNG into a new size x size canvas, scaling it to fit
+    static TiledCanvas read(InputStream stream, int size) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        byte[] sig = new byte[8];
+        in.readFully(sig);
+        if (!Arrays.equals(sig, SIGNATURE)) throw new IOException("Not a PNG file");
+
+        Header h = null;
+        int[] palette = null;
+        byte[] trns = null;
+        while (true) {
+            int length = in.readInt();
+            int type = in.readInt();
+            if (length < 0) throw new IOException("Bad PNG chunk length");
+            if (type == IDAT) {
+                if (h == null) throw new IOException("PNG has no IHDR");
+                TiledCanvas canvas = new TiledCanvas(size);
+                decode(h, palette, trns, new IdatStream(in, length), canvas);
+                return canvas;
+            }
+            byte[] data = new byte[length];
+            in.readFully(data);
+            in.readInt(); // CRC; IDAT is inflated and would fail on its own, the rest is tiny
+            if (type == IHDR) h = new Header(data);
+            else if (type == PLTE) {
+                palette = new int[length / 3];
+                for (int i = 0; i < palette.length; i++)
+                    palette[i] = 0xFF000000 | (data[i * 3] & 0xFF) << 16 | (data[i * 3 + 1] & 0xFF) << 8 | data[i * 3 + 2] & 0xFF;
+            } else if (type == TRNS) trns = data;
+            else if (type == IEND) throw new IOException("PNG has no image data");
+        }
+    }
+
+    private static final class Header {
+        final int width, height, depth, colorType, channels;
+
+        Header(byte[] d) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(d));
+            width = in.readInt();
+            height = in.readInt();
+            depth = in.readUnsignedByte();
+            colorType = in.readUnsignedByte();
+            in.readUnsignedByte(); // compression
+            in.readUnsignedByte(); // filter method
+            if (in.readUnsignedByte() != 0) throw new IOException("Interlaced PNGs are not supported");
+            if (width <= 0 || height <= 0 || (long) width * height > MAX_PIXELS) throw new IOException("Bad PNG size " + width + "x" + height);
+            switch (colorType) {
+                case 0: case 3: channels = 1; break;
+                case 2: channels = 3; break;
+                case 4: channels = 2; break;
+                case 6: channels = 4; break;
+                default: throw new IOException("Bad PNG color type " + colorType);
+            }
+            if (depth != 1 && depth != 2 && depth != 4 && depth != 8 && depth != 16) throw new IOException("Bad PNG bit depth " + depth);
+        }
+
+        int rowBytes() { return (int) (((long) width * channels * depth + 7) / 8); }
+        int pixelBytes() { return Math.max(1, channels * depth / 8); }
+    }
+
+    private static void decode(Header h, int[] palette, byte[] trns, InputStream idat, TiledCanvas canvas) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            DataInputStream z = new DataInputStream(new InflaterInputStream(idat, inflater, CHUNK));
+            int rowBytes = h.rowBytes(), bpp = h.pixelBytes();
+            byte[] row = new byte[rowBytes], prev = new byte[rowBytes];
+            int[] argb = new int[h.width];
+
+            // Destination: the image scaled so its longer side fills the canvas
+            int size = canvas.size();
+            int longer = Math.max(h.width, h.height);
+            int dw = (int) Math.max(1, (long) h.width * size / longer), dh = (int) Math.max(1, (long) h.height * size / longer);
+            int[] sourceX = new int[dw];
+            // Each destination pixel takes the source pixel under its centre
+            for (int dx = 0; dx < dw; dx++) sourceX[dx] = (int) ((2L * dx + 1) * h.width / (2L * dw));
+            int[] scaled = new int[dw];
+
+            for (int y = 0; y < h.height; y++) {
+                int filter;
+                try {
+                    filter = z.readUnsignedByte();
+                    z.readFully(row);
+                } catch (EOFException e) {
+                    throw new IOException("PNG image data ends early");
+                }
+                unfilter(filter, row, prev, bpp);
+                // Destination rows whose centre falls in source row y
+                int from = firstRow(y, dh, h.height), to = firstRow(y + 1, dh, h.height);
+                if (from < to) {
+                    toArgb(h, row, palette, trns, argb);
+                    for (int dx = 0; dx < dw; dx++) scaled[dx] = argb[sourceX[dx]];
+                    for (int dy = from; dy < to; dy++) paintRow(canvas, dy, scaled);
+                }
+                byte[] t = prev;
+                prev = row;
+                row = t;
+            }
+        } finally {
+            inflater.end();
+        }
+    }
+
+    // The first destination row whose centre is at or below source row y
+    private static int firstRow(int y, int dh, int height) {
+        long a = 2L * dh * y - height, b = 2L * height;
+        return (int) Math.max(0, -Math.floorDiv(-a, b));
+    }
+
+    private static void unfilter(int filter, byte[] row, byte[] prev, int bpp) throws IOException {
+        int n = row.length;
+        switch (filter) {
+            case 0: break;
+            case 1: for (int i = bpp; i < n; i++) row[i] += row[i - bpp]; break;
+            case 2: for (int i = 0; i < n; i++) row[i] += prev[i]; break;
+            case 3:
+                for (int i = 0; i < n; i++) {
+                    int left = i >= bpp ? row[i - bpp] & 0xFF : 0;
+                    row[i] += (byte) ((left + (prev[i] & 0xFF)) >> 1);
+                }
+                break;
+            case 4:
+                for (int i = 0; i < n; i++) {
+                    int a = i >= bpp ? row[i - bpp] & 0xFF : 0, b = prev[i] & 0xFF, c = i >= bpp ? prev[i - bpp] & 0xFF : 0;
+                    int p = a + b - c, pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+                    row[i] += (byte) (pa <= pb && pa <= pc ? a : pb <= pc ? b : c);
+                }
+                break;
+            default: throw new IOException("Bad PNG filter type " + filter);
+        }
+    }
+
+    // One row of samples to canvas colours: 0 where mostly transparent, opaque ARGB elsewhere
+    private static void toArgb(Header h, byte[] row, int[] palette, byte[] trns, int[] out) throws IOException {
+        int depth = h.depth;
+        for (int x = 0; x < h.width; x++) {
+            int r, g, b, a = 255;
+            int s = x * h.channels;
+            switch (h.colorType) {
+                case 0: {
+                    int v = sample(row, s, depth);
+                    r = g = b = scale(v, depth);
+                    if (trns != null && trns.length >= 2 && v == ((trns[0] & 0xFF) << 8 | trns[1] & 0xFF)) a = 0;
+                    break;
+                }
+                case 3: {
+                    int index = sample(row, s, depth);
+                    if (palette == null || index >= palette.length) throw new IOException("Bad PNG palette index " + index);
+                    int c = palette[index];
+                    r = c >> 16 & 0xFF;
+                    g = c >> 8 & 0xFF;
+                    b = c & 0xFF;
+                    if (trns != null && index < trns.length) a = trns[index] & 0xFF;
+                    break;
+                }
+                case 2: {
+                    int rv = sample(row, s, depth), gv = sample(row, s + 1, depth), bv = sample(row, s + 2, depth);
+                    r = scale(rv, depth);
+                    g = scale(gv, depth);
+                    b = scale(bv, depth);
+                    if (trns != null && trns.length >= 6 && rv == ((trns[0] & 0xFF) << 8 | trns[1] & 0xFF)
+                            && gv == ((trns[2] & 0xFF) << 8 | trns[3] & 0xFF) && bv == ((trns[4] & 0xFF) << 8 | trns[5] & 0xFF)) a = 0;
+                    break;
+                }
+                case 4:
+                    r = g = b = scale(sample(row, s, depth), depth);
+                    a = scale(sample(row, s + 1, depth), depth);
+                    break;
+                default:
+                    r = scale(sample(row, s, depth), depth);
+                    g = scale(sample(row, s + 1, depth), depth);
+                    b = scale(sample(row, s + 2, depth), depth);
+                    a = scale(sample(row, s + 3, depth), depth);
+            }
+            out[x] = a < 128 ? 0 : 0xFF000000 | r << 16 | g << 8 | b;
+        }
+    }
+
+    // The i-th sample of a row, at its own bit depth
+    private static int sample(byte[] row, int i, int depth) {
+        if (depth == 8) return row[i] & 0xFF;
+        if (depth == 16) return (row[i * 2] & 0xFF) << 8 | row[i * 2 + 1] & 0xFF;
+        int bit = i * depth;
+        return (row[bit >> 3] & 0xFF) >> (8 - depth - (bit & 7)) & ((1 << depth) - 1);
+    }
+
+    // A sample scaled to 0..255
+    private static int scale(int v, int depth) {
+        if (depth == 8) return v;
+        if (depth == 16) return v >> 8;
+        return v * 255 / ((1 << depth) - 1);
+    }
+
+    private static void paintRow(TiledCanvas canvas, int y, int[] row) {
+        for (int x = 0; x < row.length; ) {
+            int c = row[x], start = x;
+            while (x < row.length && row[x] == c) x++;
+            if (c != 0) canvas.fillSpan(start, y, x - start, c);
+        }
+    }
+
+    // The data of consecutive IDAT chunks as one stream; stops at the first other chunk
+    private static final class IdatStream extends InputStream {
+        private final DataInputStream in;
+        private int remaining;
+        private boolean done;
+
+        IdatStream(DataInputStream in, int firstLength) {
+            this.in = in;
+            this.remaining = firstLength;
+        }
+
+        private boolean fill() throws IOException {
+            while (remaining == 0 && !done) {
+                in.readInt(); // CRC of the chunk just read
+                int length = in.readInt();
+                if (in.readInt() != IDAT) done = true;
+                else remaining = length;
+            }
+            return !done;
+        }
+
+        @Override public int read() throws IOException {
+            if (!fill()) return -1;
+            remaining--;
+            return in.read();
+        }
+
+        @Override public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (!fill()) return -1;
+            int n = in.read(b, off, Math.min(len, remaining));
+            if (n < 0) throw new EOFException();
+            remaining -= n;
+            return n;
+        }
+    }
+}
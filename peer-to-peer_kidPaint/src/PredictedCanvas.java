@@ -0,0 +1,185 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Client side prediction. Local drawing is painted on the displayed canvas straight away and
+// kept as a pending op until the server acknowledges it (MSG_ACK carries the number of the
+// last drawing message it processed, applied or rejected). Meanwhile everything the server
+// sends is applied to a separate confirmed canvas, and copied to the display only where no
+// pending op covers the pixel. Once an op is acknowledged its pixels show the confirmed colour
+// again, which is the op's own colour unless the server dropped it or someone painted over it.
+//
+// Ops are numbered by counting drawing messages (pixels, fill, stroke begin/extend) on both
+// ends, so nothing on the wire changes but the ack. Without FEATURE_ACKS there is a single
+// canvas and local paint is simply kept. Local ops come from the FX thread, server updates
+// from the listener thread; methods are synchronized.
+public class PredictedCanvas {
+    private static final int TILE_INTS = TiledCanvas.TILE * TiledCanvas.TILE;
+
+    private static class Op {
+        final int seq;
+        final List<PixelBatch> batches;
+
+        Op(int seq, List<PixelBatch> batches) {
+            this.seq = seq;
+            this.batches = batches;
+        }
+    }
+
+    private boolean predicting;
+    private TiledCanvas confirmed;
+    private TiledCanvas display;
+    private final ArrayDeque<Op> pending = new ArrayDeque<>();
+    private List<PixelBatch> open = new ArrayList<>(); // Painted but not sent yet
+    private int sentSeq; // Drawing messages sent so far
+    // Number of pending or open ops covering each pixel, per tile, allocated on demand
+    private int[][] coverage;
+    private final FloodFill fill = new FloodFill();
+    private final int[] tile = new int[TILE_INTS];
+    private final PixelBatch clipped = new PixelBatch(); // Server batches clipped to the canvas
+
+    public PredictedCanvas(int size) {
+        confirmed = display = new TiledCanvas(size);
+        coverage = new int[display.tileCount()][];
+    }
+
+    synchronized TiledCanvas display() { return display; }
+    synchronized TiledCanvas confirmed() { return confirmed; }
+    synchronized int size() { return display.size(); }
+
+    // Called once the server has agreed to acknowledge drawing messages
+    synchronized void enablePrediction() {
+        if (predicting) return;
+        predicting = true;
+        confirmed = copyOf(display);
+    }
+
+    // --- Local ---
+
+    // Paints a local batch (already clipped); the caller must not modify it afterwards
+    synchronized void paint(PixelBatch b) {
+        apply(display, b);
+        if (!predicting) return;
+        open.add(b);
+        cover(b, 1);
+    }
+
+    // One drawing message was sent: whatever was painted since the last one is its op
+    synchronized void sent() {
+        sentSeq++;
+        if (!predicting) return;
+        if (!open.isEmpty()) pending.add(new Op(sentSeq, open));
+        open = new ArrayList<>();
+    }
+
+    // --- From the server ---
+
+    synchronized void ack(int seq) {
+        while (!pending.isEmpty() && pending.peek().seq <= seq) {
+            for (PixelBatch b : pending.poll().batches) {
+                cover(b, -1);
+                reveal(b);
+            }
+        }
+        if (pending.isEmpty() && open.isEmpty()) Arrays.fill(coverage, null);
+    }
+
+    synchronized void serverPixels(PixelBatch b) {
+        b.clipTo(confirmed.size(), clipped);
+        if (!predicting) {
+            apply(display, clipped);
+            return;
+        }
+        apply(confirmed, clipped);
+        reveal(clipped);
+    }
+
+    // Replays a fill on the confirmed canvas, where the server ran it
+    synchronized void serverFill(int x, int y, int color, PixelBatch scratch) {
+        PixelBatch spans = fill.fill(confirmed, x, y, color, scratch);
+        apply(confirmed, spans);
+        if (predicting) reveal(spans);
+    }
+
+    synchronized void serverClear() {
+        confirmed.clear();
+        if (predicting) refresh();
+    }
+
+    // The confirmed canvas was rewritten in place (snapshot or tiles)
+    synchronized void confirmedChanged() {
+        if (predicting) refresh();
+    }
+
+    // A snapshot of a new size, or decoded into a new canvas
+    synchronized void replaceConfirmed(TiledCanvas canvas) {
+        boolean resized = canvas.size() != confirmed.size();
+        confirmed = canvas;
+        if (resized) {
+            // Pending pixels refer to the old canvas; drop them and expect no acks for them to matter
+            pending.clear();
+            open = new ArrayList<>();
+            coverage = new int[canvas.tileCount()][];
+        }
+        if (!predicting) display = canvas;
+        else {
+            display = new TiledCanvas(canvas.size());
+            refresh();
+        }
+    }
+
+    // --- Internals ---
+
+    // Display = confirmed, then every pending and open op painted on top again
+    private void refresh() {
+        for (int t = 0; t < confirmed.tileCount(); t++) {
+            if (confirmed.isTileBlank(t) && display.isTileBlank(t)) continue;
+            confirmed.readTile(t, tile);
+            display.writeTile(t, tile);
+        }
+        for (Op op : pending) for (PixelBatch b : op.batches) apply(display, b);
+        for (PixelBatch b : open) apply(display, b);
+    }
+
+    // Copies the confirmed colour to the display for pixels of b no pending op covers
+    private void reveal(PixelBatch b) {
+        for (int r = 0; r < b.runCount; r++) {
+            int y = b.y(r);
+            for (int x = b.x(r), end = x + b.length(r); x < end; x++) {
+                int[] counts = coverage[confirmed.tileIndex(x, y)];
+                if (counts != null && counts[index(x, y)] > 0) continue;
+                display.set(x, y, confirmed.get(x, y));
+            }
+        }
+    }
+
+    private void cover(PixelBatch b, int delta) {
+        for (int r = 0; r < b.runCount; r++) {
+            int y = b.y(r);
+            for (int x = b.x(r), end = x + b.length(r); x < end; x++) {
+                int t = display.tileIndex(x, y);
+                if (coverage[t] == null) coverage[t] = new int[TILE_INTS];
+                coverage[t][index(x, y)] += delta;
+            }
+        }
+    }
+
+    private static int index(int x, int y) {
+        return ((y & (TiledCanvas.TILE - 1)) << TiledCanvas.TILE_SHIFT) | (x & (TiledCanvas.TILE - 1));
+    }
+
+    private static void apply(TiledCanvas canvas, PixelBatch b) {
+        for (int r = 0; r < b.runCount; r++) canvas.fillSpan(b.x(r), b.y(r), b.length(r), b.color);
+    }
+
+    private TiledCanvas copyOf(TiledCanvas source) {
+        TiledCanvas copy = new TiledCanvas(source.size());
+        for (int t = 0; t < source.tileCount(); t++) {
+            if (source.isTileBlank(t)) continue;
+            source.readTile(t, tile);
+            copy.writeTile(t, tile);
+        }
+        return copy;
+    }
+}
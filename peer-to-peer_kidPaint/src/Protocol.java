@@ -0,0 +1,204 @@
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+// The wire protocol shared by the server and the client: message types, feature bits,
+// framing, and readers that decode messages without allocating per message.
+//
+// A connection starts in the legacy layout: a type byte, then a body only the decoder for
+// that type knows the length of, so one unknown type loses the rest of the stream. A client
+// that sends FEATURE_FRAMES in its MSG_FEATURES and gets it back switches, in both directions,
+// right after that exchange (the server's reply is the last legacy message) to frames:
+//   byte type, varint bodyLength, body
+// A frame is read in one bulk read and its decoder only sees its own body, so types a peer
+// doesn't know are skipped and messages can grow new trailing fields. Servers that don't know
+// the bit never grant it and older clients never ask, so either keeps the legacy layout.
+//
+// The first frame each way is MSG_HELLO: int protocol version. A peer older than MIN_VERSION
+// is dropped, which lets a later change to the framing itself be refused cleanly.
+public final class Protocol {
+    // One numbering for both directions
+    static final int MSG_NAME = 0;
+    static final int MSG_PIXELS = 1;
+    static final int MSG_CHAT = 2;
+    static final int MSG_FULL_SKETCH = 3;
+    static final int MSG_CLEAR = 4;
+    static final int MSG_PIXELS_COMPACT = 5; // Varint/RLE pixel batch, see PixelCodec
+    static final int MSG_FULL_SKETCH_COMPACT = 6; // Palette + RLE (+ deflate) snapshot, see SnapshotCodec
+    static final int MSG_TILES = 7; // Only the tiles a client is missing, see SnapshotCodec
+    static final int MSG_WHISPER = 8;
+    static final int MSG_FILL = 9; // Bucket fill as a command: int x, int y, int color
+    static final int MSG_GAME_OVER = 10;
+    static final int MSG_STROKE_BEGIN = 11; // Stroke messages, see Stroke
+    static final int MSG_STROKE_EXTEND = 12;
+    static final int MSG_STROKE_END = 13;
+    static final int MSG_STROKE = 14;
+    static final int MSG_ACK = 15; // int: drawing messages from this client processed so far
+    static final int MSG_UNDO = 16; // No body: undo / redo the sender's last edit, see OpLog
+    static final int MSG_REDO = 17;
+    static final int MSG_REPLACE_CANVAS = 18; // A loaded sketch as a tiles message, see SketchFile
+    static final int MSG_SELECT_STUDIO = 19; // String: the studio to join, sent before MSG_NAME, see StudioManager
+    static final int MSG_LOBBY_UPDATE = 20;
+    static final int MSG_GAME_STATE = 21;
+    static final int MSG_YOUR_TURN = 22;
+    static final int MSG_LEADERBOARD = 23;
+    static final int MSG_ROUND_DEADLINE = 24; // String drawer, int ms left in the round; the client counts down itself
+    static final int MSG_MODE = 25; // Game mode of the studio
+    static final int MSG_VIEWPORT = 26; // Client -> server: int x, int y, int width, int height of the canvas in view, see Viewport
+    static final int MSG_OVERVIEW = 27; // int canvas size, int scale, then the canvas shrunk by scale as a compact snapshot
+    static final int MSG_CLIENT_READY = 50;
+    static final int MSG_HOST_START = 51;
+    static final int MSG_FEATURES = 60; // Client -> server: wanted feature bits, server -> client: accepted ones
+    static final int MSG_HELLO = 61; // First frame each way once FEATURE_FRAMES is agreed: int protocol version
+
+    static final int FEATURE_COMPACT_PIXELS = 1;
+    static final int FEATURE_COMPACT_SNAPSHOT = 2;
+    static final int FEATURE_TILES = 4;
+    static final int FEATURE_FILL = 8;
+    static final int FEATURE_STROKES = 16;
+    static final int FEATURE_ACKS = 32;
+    static final int FEATURE_REPLACE_CANVAS = 64;
+    static final int FEATURE_ROUND_DEADLINE = 128; // MSG_ROUND_DEADLINE once per round instead of a MSG_GAME_STATE every second
+    static final int FEATURE_FRAMES = 256; // Length-prefixed frames after the MSG_FEATURES exchange
+    static final int FEATURE_VIEWPORT = 512; // MSG_VIEWPORT subscriptions and MSG_OVERVIEW; needs FEATURE_TILES and FEATURE_COMPACT_SNAPSHOT
+
+    static final int VERSION = 2; // 1 is the legacy layout
+    static final int MIN_VERSION = 2;
+    static final int MAX_FRAME = 64 * 1024 * 1024;
+    static final int MAX_HEADER = 6; // Type byte and a 5 byte varint
+
+    private Protocol() {}
+
+    static Frame hello() {
+        try {
+            FrameBuffer fb = FrameBuffer.acquire(MSG_HELLO);
+            fb.writeInt(VERSION);
+            return fb.toFrame();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Bytes a message built by FrameBuffer (type byte first) takes as a frame
+    static int framedLength(byte[] message) {
+        return message.length + PixelCodec.varintSize(message.length - 1);
+    }
+
+    static void writeFrame(OutputStream out, byte[] message) throws IOException {
+        out.write(message[0]);
+        for (int len = message.length - 1; ; len >>>= 7) {
+            if ((len & ~0x7F) == 0) {
+                out.write(len);
+                break;
+            }
+            out.write((len & 0x7F) | 0x80);
+        }
+        out.write(message, 1, message.length - 1);
+    }
+
+    // The type and length of a message as a frame header, for a gathering write of the body after it
+    static ByteBuffer header(byte[] message, byte[] into, int at) {
+        int end = at;
+        into[end++] = message[0];
+        int len = message.length - 1;
+        while ((len & ~0x7F) != 0) {
+            into[end++] = (byte) ((len & 0x7F) | 0x80);
+            len >>>= 7;
+        }
+        into[end++] = (byte) len;
+        return ByteBuffer.wrap(into, at, end - at);
+    }
+
+    // Length of the complete frame starting at buf.position(), or -1 if its header hasn't fully arrived.
+    // The result may exceed buf.remaining().
+    static int frameLength(ByteBuffer buf) throws IOException {
+        int at = buf.position() + 1;
+        int len = 0;
+        for (int shift = 0; shift < 35; shift += 7, at++) {
+            if (at >= buf.limit()) return -1;
+            int b = buf.get(at);
+            len |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (len < 0 || len > MAX_FRAME) throw new IOException("Bad frame length " + len);
+                return at + 1 - buf.position() + len;
+            }
+        }
+        throw new IOException("Malformed frame header");
+    }
+
+    // Where the body of the complete frame at 'start' begins
+    static int bodyOffset(ByteBuffer buf, int start) {
+        int at = start + 1;
+        while ((buf.get(at) & 0x80) != 0) at++;
+        return at + 1;
+    }
+
+    // Bytes of the current message still unread, for checking lengths a peer declares before
+    // allocating for them: exact for a message in memory, otherwise (the legacy layout off a
+    // blocking socket) the most any message may have
+    static int bytesLeft(DataInput in) {
+        return in instanceof BodyInput b ? b.left() : MAX_FRAME;
+    }
+
+    // A message already in memory, read through one DataInputStream that is pointed at each
+    // message in turn instead of wrapping every message in new streams
+    static final class Body extends ByteArrayInputStream {
+        private final BodyInput data = new BodyInput(this);
+
+        Body() { super(new byte[0]); }
+
+        DataInputStream of(byte[] bytes, int offset, int length) {
+            buf = bytes;
+            pos = offset;
+            mark = offset;
+            count = offset + length;
+            return data;
+        }
+    }
+
+    private static final class BodyInput extends DataInputStream {
+        private final Body body;
+
+        BodyInput(Body body) {
+            super(body);
+            this.body = body;
+        }
+
+        int left() { return body.available(); }
+    }
+
+    // Reads messages in either layout off a blocking stream. next() returns the type of the next
+    // message, or -1 once the peer has closed the connection; body() then reads that message.
+    // A frame's body is in memory by then and stays valid until the next call to next().
+    static final class Reader {
+        private static final int MAX_KEPT = 1 << 20;
+
+        private final DataInputStream in;
+        private final Body body = new Body();
+        private byte[] buffer = new byte[8192]; // Reused for every frame; one that held a huge canvas is dropped afterwards
+        private DataInputStream current;
+
+        Reader(InputStream in) {
+            this.in = new DataInputStream(in);
+            this.current = this.in;
+        }
+
+        int next(boolean framed) throws IOException {
+            int type = in.read();
+            current = in;
+            if (type < 0 || !framed) return type;
+            int length = PixelCodec.readVarint(in);
+            if (length < 0 || length > MAX_FRAME) throw new IOException("Bad frame length " + length);
+            if (length > buffer.length || buffer.length > MAX_KEPT) buffer = new byte[Math.max(length, 8192)];
+            in.readFully(buffer, 0, length); // EOFException if the peer hung up mid-frame
+            current = body.of(buffer, 0, length);
+            return type;
+        }
+
+        DataInputStream body() { return current; }
+    }
+}
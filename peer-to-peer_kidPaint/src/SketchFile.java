@@ -0,0 +1,116 @@
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Saved sketches. Version 2 (.kps):
+//   int MAGIC, int VERSION, then a SnapshotCodec tiles message holding the non-blank tiles
+//   (canvas size, palette, per-tile runs, deflated)
+// Legacy (.dat): int canvasSize, then canvasSize x canvasSize ints, x outer and y inner.
+// Both are read from a memory-mapped file; the format is told apart by the first int.
+public final class SketchFile {
+    static final String EXTENSION = "*.kps";
+    static final String LEGACY_EXTENSION = "*.dat";
+    private static final int MAGIC = 0x4B50534B; // "KPSK", far above any legacy canvas size
+    private static final int VERSION = 2;
+    static final int MAX_SIZE = 16384;
+
+    private SketchFile() {}
+
+    static void write(Path path, TiledCanvas canvas) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            SnapshotCodec.writeTiles(out, canvas, paintedTiles(canvas));
+            out.flush();
+        }
+    }
+
+    static TiledCanvas read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (map.remaining() < 4) throw new IOException("Not a sketch file");
+            if (map.getInt(0) != MAGIC) return readLegacy(map);
+            map.position(4);
+            int version = map.getInt();
+            if (version != VERSION) throw new IOException("Unsupported sketch version " + version);
+            return SnapshotCodec.readTiles(new DataInputStream(new BufferInput(map)), MAX_SIZE, MAX_SIZE);
+        }
+    }
+
+    private static TiledCanvas readLegacy(ByteBuffer map) throws IOException {
+        IntBuffer ints = map.asIntBuffer();
+        int size = ints.get();
+        if (size <= 0 || size > MAX_SIZE) throw new IOException("Bad canvas size " + size);
+        if (ints.remaining() < (long) size * size) throw new IOException("Truncated sketch file");
+        TiledCanvas canvas = new TiledCanvas(size);
+        int[] column = new int[size];
+        for (int x = 0; x < size; x++) {
+            ints.get(column);
+            for (int y = 0; y < size; y++) if (column[y] != 0) canvas.set(x, y, column[y]);
+        }
+        return canvas;
+    }
+
+    static int[] paintedTiles(TiledCanvas canvas) {
+        int[] tiles = new int[canvas.tileCount()];
+        int n = 0;
+        for (int t = 0; t < tiles.length; t++) if (!canvas.isTileBlank(t)) tiles[n++] = t;
+        return Arrays.copyOf(tiles, n);
+    }
+
+    // The painted pixels of the top-left size x size of canvas as horizontal runs, one batch per colour
+    static List<PixelBatch> colorRuns(TiledCanvas canvas, int size) {
+        Map<Integer, PixelBatch> byColor = new LinkedHashMap<>();
+        int w = Math.min(size, canvas.size());
+        int[] row = new int[canvas.size()];
+        for (int y = 0; y < w; y++) {
+            canvas.copyRow(y, row);
+            for (int x = 0; x < w; ) {
+                int c = row[x], start = x;
+                while (x < w && row[x] == c) x++;
+                if (c == 0) continue;
+                PixelBatch b = byColor.get(c);
+                if (b == null) {
+                    b = new PixelBatch();
+                    b.reset(c);
+                    byColor.put(c, b);
+                }
+                b.addSpan(start, y, x - start);
+            }
+        }
+        return new ArrayList<>(byColor.values());
+    }
+
+    // Reads straight from the mapped buffer
+    private static final class BufferInput extends InputStream {
+        private final ByteBuffer buf;
+
+        BufferInput(ByteBuffer buf) { this.buf = buf; }
+
+        @Override public int read() {
+            return buf.hasRemaining() ? buf.get() & 0xFF : -1;
+        }
+
+        @Override public int read(byte[] b, int off, int len) {
+            if (!buf.hasRemaining()) return -1;
+            int n = Math.min(len, buf.remaining());
+            buf.get(b, off, n);
+            return n;
+        }
+    }
+}
@@ -0,0 +1,272 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+// Compact canvas snapshots. Both messages share the header
+//   int byteLength, int canvasSize, byte flags (FLAG_DEFLATE)
+// followed by a body that is deflated when flagged and starts with a palette of the
+// distinct ARGB values: varint paletteSize, paletteSize x int. Pixels are then
+// (varint paletteIndex, varint length) runs.
+//
+// MSG_FULL_SKETCH_COMPACT: varint runCount, runs over the canvas row by row (y outer,
+//   x inner); runs may continue across rows, so a blank canvas is a single run.
+// MSG_TILES: varint tileCount, then per tile varint tileIndex, varint runCount and runs
+//   over its TILE x TILE cells. Used to resync only the tiles a client is missing.
+//
+// Clients send these too (MSG_REPLACE_CANVAS), so every length and count is checked against
+// what the message or the canvas can hold before anything is allocated for it, and a bad
+// one is an IOException that drops just that connection.
+public final class SnapshotCodec {
+    static final int FLAG_DEFLATE = 1;
+    static final boolean DEFLATE = Boolean.parseBoolean(System.getProperty("kidpaint.snapshotDeflate", "true"));
+
+    private SnapshotCodec() {}
+
+    interface BodyWriter { void write(DataOutputStream body) throws IOException; }
+
+    // --- Full snapshot ---
+
+    static void write(DataOutput out, TiledCanvas canvas) throws IOException {
+        int size = canvas.size();
+        Runs runs = new Runs();
+        int[] row = new int[size];
+        for (int y = 0; y < size; y++) {
+            canvas.copyRow(y, row);
+            runs.add(row, 0, size);
+        }
+        runs.end();
+        writeMessage(out, size, body -> {
+            runs.writePalette(body);
+            PixelCodec.writeVarint(body, runs.count);
+            runs.writeRuns(body, 0, runs.count);
+        });
+    }
+
+    // Reads a full snapshot into 'reuse' when it has the right size, otherwise into a new canvas
+    static TiledCanvas read(DataInput in, TiledCanvas reuse) throws IOException {
+        int byteLength = in.readInt();
+        int size = in.readInt();
+        if (size <= 0) throw new IOException("Bad canvas size " + size);
+        int flags = in.readUnsignedByte();
+        DataInputStream body = openBody(in, byteLength, flags);
+        TiledCanvas canvas = reuse != null && reuse.size() == size ? reuse : new TiledCanvas(size);
+
+        long pixels = (long) size * size;
+        int[] palette = readPalette(body, bodyBytes(byteLength, flags), pixels);
+        int runCount = count(body, pixels, "run");
+        int x = 0, y = 0;
+        for (int r = 0; r < runCount && y < size; r++) {
+            int color = color(palette, PixelCodec.readVarint(body));
+            int length = runLength(body);
+            while (length > 0 && y < size) {
+                int n = Math.min(length, size - x);
+                canvas.fillSpan(x, y, n, color);
+                length -= n;
+                x += n;
+                if (x == size) {
+                    x = 0;
+                    y++;
+                }
+            }
+        }
+        return canvas;
+    }
+
+    // --- Partial snapshot: selected tiles ---
+
+    static void writeTiles(DataOutput out, TiledCanvas canvas, int[] tiles) throws IOException {
+        Runs runs = new Runs();
+        int[] tileRunEnds = new int[tiles.length];
+        int[] cells = new int[TiledCanvas.TILE * TiledCanvas.TILE];
+        for (int i = 0; i < tiles.length; i++) {
+            canvas.readTile(tiles[i], cells);
+            runs.add(cells, 0, cells.length);
+            runs.end();
+            tileRunEnds[i] = runs.count;
+        }
+        writeMessage(out, canvas.size(), body -> {
+            runs.writePalette(body);
+            PixelCodec.writeVarint(body, tiles.length);
+            int from = 0;
+            for (int i = 0; i < tiles.length; i++) {
+                PixelCodec.writeVarint(body, tiles[i]);
+                PixelCodec.writeVarint(body, tileRunEnds[i] - from);
+                runs.writeRuns(body, from, tileRunEnds[i]);
+                from = tileRunEnds[i];
+            }
+        });
+    }
+
+    // Applies the tiles to the canvas; skipped if the canvas has a different size
+    static void readTiles(DataInput in, TiledCanvas canvas) throws IOException {
+        int byteLength = in.readInt();
+        int size = in.readInt();
+        int flags = in.readUnsignedByte();
+        DataInputStream body = openBody(in, byteLength, flags);
+        if (canvas == null || canvas.size() != size) return;
+        readTileRuns(body, bodyBytes(byteLength, flags), size, canvas);
+    }
+
+    // Reads the tiles into a new blank canvas, clipped to clipSize: tiles beyond it are decoded
+    // but not kept, so the sender can't make us allocate for a bigger canvas than we have
+    static TiledCanvas readTiles(DataInput in, int maxSize, int clipSize) throws IOException {
+        int byteLength = in.readInt();
+        int size = in.readInt();
+        if (size <= 0 || size > maxSize) throw new IOException("Bad canvas size " + size);
+        int flags = in.readUnsignedByte();
+        DataInputStream body = openBody(in, byteLength, flags);
+        TiledCanvas canvas = new TiledCanvas(Math.min(size, clipSize));
+        readTileRuns(body, bodyBytes(byteLength, flags), size, canvas);
+        return canvas;
+    }
+
+    // Tile indices are those of a canvas of 'size', which may be bigger than 'canvas'
+    private static void readTileRuns(DataInputStream body, long bodyBytes, int size, TiledCanvas canvas) throws IOException {
+        int[] cells = new int[TiledCanvas.TILE * TiledCanvas.TILE];
+        int tilesPerSide = (size + TiledCanvas.TILE - 1) >> TiledCanvas.TILE_SHIFT;
+        int[] palette = readPalette(body, bodyBytes, (long) size * size);
+        int tileCount = count(body, (long) tilesPerSide * tilesPerSide, "tile");
+        for (int i = 0; i < tileCount; i++) {
+            int t = PixelCodec.readVarint(body);
+            int x = (t % tilesPerSide) << TiledCanvas.TILE_SHIFT, y = (t / tilesPerSide) << TiledCanvas.TILE_SHIFT;
+            boolean kept = t >= 0 && t < tilesPerSide * tilesPerSide && canvas.contains(x, y);
+            int runCount = count(body, cells.length, "run");
+            int at = 0;
+            for (int r = 0; r < runCount; r++) {
+                int color = color(palette, PixelCodec.readVarint(body));
+                int length = Math.min(runLength(body), cells.length - at);
+                if (kept) Arrays.fill(cells, at, at + length, color);
+                at += length;
+            }
+            if (!kept) continue;
+            Arrays.fill(cells, at, cells.length, 0); // Cells no run reached are blank, not the last tile's
+            canvas.writeTile(canvas.tileIndex(x, y), cells);
+        }
+    }
+
+    // --- Shared helpers ---
+
+    private static void writeMessage(DataOutput out, int size, BodyWriter writer) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(256);
+        Deflater deflater = DEFLATE ? new Deflater(Deflater.BEST_SPEED) : null;
+        try {
+            DataOutputStream dos = new DataOutputStream(deflater != null ? new DeflaterOutputStream(body, deflater, 8192) : body);
+            writer.write(dos);
+            dos.close();
+        } finally {
+            if (deflater != null) deflater.end();
+        }
+        out.writeInt(4 + 1 + body.size());
+        out.writeInt(size);
+        out.writeByte(deflater != null ? FLAG_DEFLATE : 0);
+        out.write(body.toByteArray());
+    }
+
+    // byteLength counts the size and flags already read, and must fit in what is left of the message
+    private static DataInputStream openBody(DataInput in, int byteLength, int flags) throws IOException {
+        if (byteLength < 5 || byteLength - 5 > Protocol.bytesLeft(in)) throw new IOException("Bad snapshot length " + byteLength);
+        byte[] body = new byte[byteLength - 5];
+        in.readFully(body);
+        InputStream raw = new ByteArrayInputStream(body);
+        // Buffered: varints are read a byte at a time, and each read of an inflater is a native call
+        if ((flags & FLAG_DEFLATE) != 0) raw = new BufferedInputStream(new InflaterInputStream(raw), 8192);
+        return new DataInputStream(raw);
+    }
+
+    // Bytes an opened body holds; a deflated one is only known once it is inflated
+    private static long bodyBytes(int byteLength, int flags) {
+        return (flags & FLAG_DEFLATE) != 0 ? Long.MAX_VALUE : byteLength - 5;
+    }
+
+    // A palette can't have more colours than the canvas has pixels, nor more than the body has
+    // room for. Deflated, only what actually inflates is kept: the array grows as it is read.
+    private static int[] readPalette(DataInputStream body, long bodyBytes, long pixels) throws IOException {
+        int n = count(body, Math.min(pixels, bodyBytes / 4), "palette");
+        int[] palette = new int[Math.min(n, 256)];
+        for (int p = 0; p < n; p++) {
+            if (p == palette.length) palette = Arrays.copyOf(palette, (int) Math.min(n, 2L * p));
+            palette[p] = body.readInt();
+        }
+        return palette;
+    }
+
+    private static int count(DataInput body, long max, String what) throws IOException {
+        int n = PixelCodec.readVarint(body);
+        if (n < 0 || n > max) throw new IOException("Bad " + what + " count " + n);
+        return n;
+    }
+
+    private static int color(int[] palette, int index) throws IOException {
+        if (index < 0 || index >= palette.length) throw new IOException("Bad palette index " + index);
+        return palette[index];
+    }
+
+    private static int runLength(DataInput body) throws IOException {
+        int length = PixelCodec.readVarint(body);
+        if (length < 0) throw new IOException("Bad run length " + length);
+        return length;
+    }
+
+    // Collects (palette index, length) runs and the palette in one pass
+    private static final class Runs {
+        final Map<Integer, Integer> palette = new HashMap<>();
+        int[] colors = new int[16];
+        int[] runs = new int[64];
+        int count;
+        int current, length;
+
+        void add(int[] src, int from, int n) {
+            for (int i = from; i < from + n; i++) {
+                int c = src[i];
+                if (length > 0 && c == current) {
+                    length++;
+                } else {
+                    end();
+                    current = c;
+                    length = 1;
+                }
+            }
+        }
+
+        // Closes the open run, so the next pixel starts a new one
+        void end() {
+            if (length == 0) return;
+            Integer index = palette.get(current);
+            if (index == null) {
+                index = palette.size();
+                if (index == colors.length) colors = Arrays.copyOf(colors, colors.length * 2);
+                colors[index] = current;
+                palette.put(current, index);
+            }
+            if (count * 2 == runs.length) runs = Arrays.copyOf(runs, runs.length * 2);
+            runs[count * 2] = index;
+            runs[count * 2 + 1] = length;
+            count++;
+            length = 0;
+        }
+
+        void writePalette(DataOutput out) throws IOException {
+            PixelCodec.writeVarint(out, palette.size());
+            for (int p = 0; p < palette.size(); p++) out.writeInt(colors[p]);
+        }
+
+        void writeRuns(DataOutput out, int from, int to) throws IOException {
+            for (int r = from; r < to; r++) {
+                PixelCodec.writeVarint(out, runs[r * 2]);
+                PixelCodec.writeVarint(out, runs[r * 2 + 1]);
+            }
+        }
+    }
+}
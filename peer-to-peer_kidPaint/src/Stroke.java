@@ -0,0 +1,159 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+// A pen or eraser stroke: sampled points joined by straight segments, drawn in one colour
+// with a round brush of the given radius (0 = one pixel wide). Reused like PixelBatch.
+//
+// Client to server:
+//   MSG_STROKE_BEGIN:  int color, byte radius, int x, int y
+//   MSG_STROKE_EXTEND: int byteLength, varint count, count x (zigzag varint dx, dy) from the previous point
+//   MSG_STROKE_END:    no body
+// Server to clients, one self-contained piece of a stroke so late joiners need no state:
+//   MSG_STROKE:        int byteLength, int color, byte radius, varint count, points as deltas from (0, 0)
+public final class Stroke {
+    static final int MAX_RADIUS = 16;
+
+    int color;
+    int radius;
+    int[] points = new int[32];
+    int count;
+    // Row extents of the segment being rasterized, reused between segments
+    private int[] lo = new int[0], hi = new int[0];
+
+    void reset(int color, int radius) {
+        this.color = color;
+        this.radius = Math.max(0, Math.min(MAX_RADIUS, radius));
+        this.count = 0;
+    }
+
+    void add(int x, int y) {
+        if (count * 2 == points.length) points = Arrays.copyOf(points, points.length * 2);
+        points[count * 2] = x;
+        points[count * 2 + 1] = y;
+        count++;
+    }
+
+    int x(int i) { return points[i * 2]; }
+    int y(int i) { return points[i * 2 + 1]; }
+
+    // Drops every point but the last, which the next piece of the stroke starts from
+    void keepLast() {
+        if (count <= 1) return;
+        points[0] = x(count - 1);
+        points[1] = y(count - 1);
+        count = 1;
+    }
+
+    // Pulls every point inside a size x size canvas, so a bad point can't make a huge segment
+    void clampTo(int size) {
+        for (int i = 0; i < count * 2; i++) points[i] = Math.max(0, Math.min(size - 1, points[i]));
+    }
+
+    // Adds the pixels under the stroke to out as runs, clipped to a size x size canvas.
+    // A lone point is stamped once; neighbouring segments overlap only at their shared point.
+    PixelBatch rasterize(int size, PixelBatch out) {
+        out.reset(color);
+        if (count == 1) segment(x(0), y(0), x(0), y(0), size, out);
+        for (int i = 1; i < count; i++) segment(x(i - 1), y(i - 1), x(i), y(i), size, out);
+        return out;
+    }
+
+    // Bresenham from (x0, y0) to (x1, y1), stamping a disc at every step. A thick segment
+    // meets each row in a single interval, so tracking the extent per row yields one span per row.
+    private void segment(int x0, int y0, int x1, int y1, int size, PixelBatch out) {
+        int r = radius;
+        int top = Math.min(y0, y1) - r;
+        int rows = Math.abs(y1 - y0) + 2 * r + 1;
+        if (lo.length < rows) {
+            lo = new int[rows];
+            hi = new int[rows];
+        }
+        Arrays.fill(lo, 0, rows, Integer.MAX_VALUE);
+        Arrays.fill(hi, 0, rows, Integer.MIN_VALUE);
+
+        int dx = Math.abs(x1 - x0), sx = x0 < x1 ? 1 : -1;
+        int dy = -Math.abs(y1 - y0), sy = y0 < y1 ? 1 : -1;
+        int err = dx + dy;
+        int x = x0, y = y0;
+        while (true) {
+            for (int oy = -r; oy <= r; oy++) {
+                int w = (int) Math.sqrt(r * r + r - oy * oy); // r*r + r rounds the disc's edge
+                int row = y + oy - top;
+                lo[row] = Math.min(lo[row], x - w);
+                hi[row] = Math.max(hi[row], x + w);
+            }
+            if (x == x1 && y == y1) break;
+            int e2 = 2 * err;
+            if (e2 >= dy) { err += dy; x += sx; }
+            if (e2 <= dx) { err += dx; y += sy; }
+        }
+
+        for (int row = 0; row < rows; row++) {
+            int py = top + row;
+            if (py < 0 || py >= size || lo[row] > hi[row]) continue;
+            int from = Math.max(0, lo[row]), to = Math.min(size - 1, hi[row]);
+            if (from <= to) out.addSpan(from, py, to - from + 1);
+        }
+    }
+
+    // --- Wire format ---
+
+    // Points from index 'from' on, as deltas starting from (px, py), with the byte length prefix
+    static void writePoints(DataOutput out, Stroke s, int from, int px, int py) throws IOException {
+        out.writeInt(pointsSize(s, from, px, py));
+        writeDeltas(out, s, from, px, py);
+    }
+
+    // Appends points written by writePoints, relative to the stroke's last point (or (0, 0))
+    static void readPoints(DataInput in, Stroke s) throws IOException {
+        in.readInt(); // byteLength
+        int px = s.count > 0 ? s.x(s.count - 1) : 0;
+        int py = s.count > 0 ? s.y(s.count - 1) : 0;
+        readDeltas(in, s, px, py);
+    }
+
+    static void writeSegment(DataOutput out, Stroke s) throws IOException {
+        out.writeInt(4 + 1 + pointsSize(s, 0, 0, 0));
+        out.writeInt(s.color);
+        out.writeByte(s.radius);
+        writeDeltas(out, s, 0, 0, 0);
+    }
+
+    static void readSegment(DataInput in, Stroke s) throws IOException {
+        in.readInt(); // byteLength
+        int color = in.readInt();
+        s.reset(color, in.readUnsignedByte());
+        readDeltas(in, s, 0, 0);
+    }
+
+    private static int pointsSize(Stroke s, int from, int px, int py) {
+        int size = PixelCodec.varintSize(s.count - from);
+        for (int i = from; i < s.count; i++) {
+            size += PixelCodec.varintSize(PixelCodec.zigzag(s.x(i) - px)) + PixelCodec.varintSize(PixelCodec.zigzag(s.y(i) - py));
+            px = s.x(i);
+            py = s.y(i);
+        }
+        return size;
+    }
+
+    private static void writeDeltas(DataOutput out, Stroke s, int from, int px, int py) throws IOException {
+        PixelCodec.writeVarint(out, s.count - from);
+        for (int i = from; i < s.count; i++) {
+            PixelCodec.writeVarint(out, PixelCodec.zigzag(s.x(i) - px));
+            PixelCodec.writeVarint(out, PixelCodec.zigzag(s.y(i) - py));
+            px = s.x(i);
+            py = s.y(i);
+        }
+    }
+
+    private static void readDeltas(DataInput in, Stroke s, int px, int py) throws IOException {
+        int n = PixelCodec.readVarint(in);
+        for (int i = 0; i < n; i++) {
+            px += PixelCodec.unzigzag(PixelCodec.readVarint(in));
+            py += PixelCodec.unzigzag(PixelCodec.readVarint(in));
+            s.add(px, py);
+        }
+    }
+}
@@ -116,7 +116,7 @@ public class StudioListDialog {
                     StudioInfo info = new StudioInfo(studioName, ip, port, mode);
 
                     Platform.runLater(() -> {
-                        if (!studioList.stream().anyMatch(s -> s.getIpAddress().equals(ip) && s.getPort() == port)) {
+                        if (!studioList.stream().anyMatch(s -> s.getIpAddress().equals(ip) && s.getPort() == port && s.getStudioName().equals(studioName))) {
                             studioList.add(info);
                             lblStatus.setText("Found " + studioList.size() + " studio(s)");
                         }
@@ -0,0 +1,89 @@
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+// The single thread that owns one studio's state. Socket readers, timers and the journal
+// only append commands to a lock-free queue; the loop runs them one at a time in the order
+// they were posted, so handlers need no locks and never interleave.
+//
+// Timers of every studio share one scheduler thread, which only posts commands here. Cancelling
+// just marks the task (O(1)); it leaves the queue when it would have run. A command posted just
+// before its timer was cancelled still runs, so handlers check it is still wanted.
+public class StudioLoop implements Runnable {
+    private static final ScheduledThreadPoolExecutor TIMERS = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread t = new Thread(r, "studio-timers");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final ConcurrentLinkedQueue<Runnable> commands = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private volatile boolean parked;
+
+    StudioLoop(String name) {
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+    }
+
+    void start() { thread.start(); }
+
+    boolean inLoop() { return Thread.currentThread() == thread; }
+
+    // Any thread; never blocks
+    void execute(Runnable command) {
+        commands.offer(command);
+        if (parked) LockSupport.unpark(thread);
+    }
+
+    ScheduledFuture<?> schedule(Runnable command, long delayMs) {
+        return TIMERS.schedule(() -> execute(command), delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long periodMs) {
+        return TIMERS.scheduleAtFixedRate(() -> execute(command), periodMs, periodMs, TimeUnit.MILLISECONDS);
+    }
+
+    // Runs c on the loop and waits for its result. Only for threads the loop never waits on.
+    <T> T call(Callable<T> c) {
+        if (inLoop()) {
+            try {
+                return c.call();
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        CompletableFuture<T> result = new CompletableFuture<>();
+        execute(() -> {
+            try {
+                result.complete(c.call());
+            } catch (Exception | Error e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result.join();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            Runnable command = commands.poll();
+            if (command == null) {
+                // Producers unpark after their offer if they see this flag, so a command
+                // offered after the isEmpty check still wakes us
+                parked = true;
+                if (commands.isEmpty()) LockSupport.park(this);
+                parked = false;
+                continue;
+            }
+            try {
+                command.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace(); // One bad message must not stop the studio
+            }
+        }
+    }
+}
@@ -0,0 +1,227 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+// Hosts any number of studios behind one listening port and one discovery listener.
+// A connection belongs to no studio until it sends MSG_SELECT_STUDIO; clients that skip
+// it (older ones) land in the first studio hosted. The socket threads or NIO loops are
+// shared by every studio, so a classroom of rooms costs one process and one port.
+public final class StudioManager implements Runnable {
+    static final int DISCOVERY_PORT = 12346;
+    // Connections the OS queues before they are accepted. The default of 50 drops connects
+    // (retried a second later) when a whole class joins at once.
+    static final int BACKLOG = 1024;
+
+    // How client sockets are serviced: a blocking WorkerThread each (on platform threads, or on
+    // virtual threads so thousands of connections stay cheap), or a few NIO selector loops.
+    // Picked with -Dkidpaint.io=blocking|virtual|nio so they can be compared under the same load.
+    enum IoMode { BLOCKING, VIRTUAL, NIO }
+
+    private final int port;
+    private final IoMode ioMode;
+    private ServerSocket serverSocket;
+    private NioServer nioServer;
+    private Thread.Builder connectionThreads; // Reader and writer of each WorkerThread
+    private final Map<String, PaintServerHost> studios = new ConcurrentSkipListMap<>();
+    private volatile PaintServerHost first;
+    final WireStats wireStats = WireStats.create("server");
+
+    public StudioManager(int port) throws IOException {
+        this(port, IoMode.valueOf(System.getProperty("kidpaint.io", "blocking").toUpperCase()));
+    }
+
+    public StudioManager(int port, IoMode ioMode) throws IOException {
+        this.port = port;
+        this.ioMode = ioMode;
+        if (ioMode == IoMode.NIO) {
+            int ioThreads = Integer.getInteger("kidpaint.nioThreads", Math.min(4, Runtime.getRuntime().availableProcessors()));
+            this.nioServer = new NioServer(this, port, ioThreads);
+        } else {
+            this.serverSocket = new ServerSocket(port, BACKLOG);
+            // Studio state lives on the studio loops, so these threads hold no monitors while they
+            // block on the socket or the outbound queue, and virtual ones never pin their carrier
+            this.connectionThreads = ioMode == IoMode.VIRTUAL ? Thread.ofVirtual().name("client-", 0) : Thread.ofPlatform().name("client-", 0);
+        }
+        System.out.println("Server started on port " + port + " (" + ioMode + " I/O)");
+        // The journal writers are daemons, so without this a clean stop loses the last journalSyncMs of changes
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            for (PaintServerHost studio : studios.values()) studio.closeJournal();
+        }, "journal-close"));
+    }
+
+    // Opens a new studio; it can be joined as soon as this returns
+    public synchronized PaintServerHost host(String name, int size, boolean isDrawGuess) throws IOException {
+        if (studios.containsKey(name)) throw new IOException("Studio '" + name + "' is already hosted");
+        PaintServerHost studio = new PaintServerHost(name, size, isDrawGuess);
+        studios.put(name, studio);
+        if (first == null) first = studio;
+        return studio;
+    }
+
+    PaintServerHost studio(String name) { return studios.get(name); }
+
+    @Override
+    public void run() {
+        try {
+            new Thread(new UdpBroadcastListener(DISCOVERY_PORT)).start();
+            if (ioMode == IoMode.NIO) {
+                nioServer.run();
+                return;
+            }
+            while (true) {
+                Socket socket = serverSocket.accept();
+                new WorkerThread(socket).start();
+            }
+        } catch (IOException e) { e.printStackTrace(); }
+    }
+
+    // MSG_SELECT_STUDIO, or name == null for the first studio. A connection stays in the
+    // studio it got first. Returns false, and drops the connection, if there is no such studio.
+    boolean select(ClientConnection conn, String name) {
+        if (conn.server != null) return true;
+        PaintServerHost studio = name == null ? first : studios.get(name);
+        if (studio == null) {
+            System.out.println("Connection asked for unknown studio '" + name + "'");
+            conn.close();
+            return false;
+        }
+        conn.server = studio;
+        studio.execute(() -> studio.addClient(conn));
+        return true;
+    }
+
+    // Features are per connection, so they can be agreed before a studio is picked.
+    // Reader thread; with FEATURE_FRAMES the client's next message is already a frame.
+    void handleFeatures(ClientConnection conn, int wanted) {
+        if (conn.framesIn) return; // Too late to change the layout
+        conn.features = wanted & PaintServerHost.SUPPORTED_FEATURES;
+        // A partial canvas is only ever topped up with tiles and overview snapshots
+        int viewportNeeds = Protocol.FEATURE_TILES | Protocol.FEATURE_COMPACT_SNAPSHOT;
+        if ((conn.features & viewportNeeds) != viewportNeeds) conn.features &= ~Protocol.FEATURE_VIEWPORT;
+        try {
+            FrameBuffer fb = FrameBuffer.acquire(Protocol.MSG_FEATURES);
+            fb.writeInt(conn.features);
+            conn.send(fb.toFrame());
+        } catch (IOException e) {}
+        if ((conn.features & Protocol.FEATURE_FRAMES) != 0) {
+            conn.framesIn = true;
+            conn.send(Protocol.hello());
+        }
+    }
+
+    // A classroom in one process:
+    //   java StudioManager <name>[:size][:guess] ...
+    // e.g. "Room1 Room2:100 Quiz:50:guess"; size defaults to 50
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.out.println("Usage: StudioManager <name>[:size][:guess] ...");
+            return;
+        }
+        StudioManager manager = new StudioManager(KidPaint2.SERVER_PORT);
+        for (String arg : args) {
+            String[] parts = arg.split(":");
+            int size = parts.length > 1 ? Integer.parseInt(parts[1]) : 50;
+            manager.host(parts[0], size, parts.length > 2 && parts[2].equalsIgnoreCase("guess"));
+        }
+        manager.run();
+    }
+
+    // Blocking and virtual modes: one thread per socket parked in DataInputStream.read(),
+    // plus a writer thread that drains the outbound queue
+    class WorkerThread extends ClientConnection implements Runnable {
+        Socket socket;
+        DataOutputStream out;
+        final WireStats.Counted wire;
+
+        public WorkerThread(Socket s) throws IOException {
+            super(StudioManager.this);
+            this.socket = s;
+            s.setTcpNoDelay(true); // We flush whole frames ourselves, so don't let Nagle delay them
+            this.wire = wireStats.wrap(s.getOutputStream());
+            this.out = new DataOutputStream(new BufferedOutputStream(wire, 64 * 1024));
+        }
+        public DataOutputStream getOutputStream() { return out; }
+        public Socket getSocket() { return socket; }
+
+        public void start() {
+            connectionThreads.start(this);
+            connectionThreads.start(this::writeLoop);
+        }
+
+        void frameQueued() {} // The writer is already waiting in take()
+
+        void close() {
+            outbound.close();
+            try { socket.close(); } catch (IOException e) {}
+        }
+
+        private void writeLoop() {
+            try {
+                Frame f;
+                while ((f = outbound.take()) != null) {
+                    // Write everything that is already queued, then flush the batch once
+                    do {
+                        byte[] data = resolve(f).encoded(features);
+                        if (framesOut) {
+                            wire.frame(data[0], Protocol.framedLength(data));
+                            Protocol.writeFrame(out, data);
+                        } else {
+                            wire.frame(data[0], data.length);
+                            out.write(data);
+                        }
+                        written(data);
+                    } while ((f = outbound.poll()) != null);
+                    out.flush();
+                }
+            } catch (IOException | InterruptedException e) {}
+            close();
+        }
+
+        public void run() {
+            try {
+                Protocol.Reader in = new Protocol.Reader(socket.getInputStream());
+                int type;
+                while ((type = in.next(framesIn)) >= 0) dispatch(type, in.body());
+            } catch (IOException e) {
+            } finally {
+                // The client hung up, sent something malformed, or the socket was closed under
+                // us; whatever ended the loop, the client leaves the studio
+                close();
+                disconnected();
+            }
+        }
+    }
+
+    // Answers each discovery request with one reply per studio
+    class UdpBroadcastListener implements Runnable {
+        int udpPort;
+
+        UdpBroadcastListener(int udpPort) {
+            this.udpPort = udpPort;
+        }
+
+        public void run() {
+            try (DatagramSocket socket = new DatagramSocket(udpPort)) {
+                byte[] buf = new byte[1024];
+                while(true) {
+                    DatagramPacket packet = new DatagramPacket(buf, buf.length);
+                    socket.receive(packet);
+                    String msg = new String(packet.getData(), 0, packet.getLength());
+                    if(msg.equals("KIDPAINT_DISCOVERY_REQUEST")) {
+                        for (PaintServerHost studio : studios.values()) {
+                            String modeStr = studio.isDrawGuess() ? "Draw & Guess" : "Draw Together";
+                            byte[] reply = ("KIDPAINT_STUDIO:" + studio.getName() + ":" + port + ":" + modeStr).getBytes();
+                            socket.send(new DatagramPacket(reply, reply.length, packet.getAddress(), packet.getPort()));
+                        }
+                    }
+                }
+            } catch(Exception e){}
+        }
+    }
+}
@@ -0,0 +1,179 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+// Pixel storage behind a TiledCanvas: tileCount tiles of TILE * TILE ints each, addressed
+// as (tile, index inside the tile). TiledCanvas keeps the blank flags, so a store only has
+// to hold pixels for tiles that have been written since the last clear.
+//
+// Picked by canvas size (or -Dkidpaint.canvasStore=flat|sparse|offheap):
+//   FLAT    one int[] for the whole canvas, for the usual small studios
+//   SPARSE  one int[] per tile, allocated on first write and dropped again on clear
+//   OFFHEAP direct ByteBuffers, one per row of tiles, allocated on first write; keeps huge
+//           canvases out of the Java heap
+abstract class TileStore {
+    static final int TILE_INTS = TiledCanvas.TILE * TiledCanvas.TILE;
+
+    enum Kind { FLAT, SPARSE, OFFHEAP }
+
+    static final long FLAT_LIMIT = 64L * 1024 * 1024; // Bytes of a fully painted canvas
+
+    final Kind kind;
+    final int tileCount;
+
+    TileStore(Kind kind, int tileCount) {
+        this.kind = kind;
+        this.tileCount = tileCount;
+    }
+
+    static TileStore create(int tilesPerSide) {
+        String forced = System.getProperty("kidpaint.canvasStore");
+        Kind kind = forced != null ? Kind.valueOf(forced.toUpperCase()) : choose(tilesPerSide);
+        switch (kind) {
+            case FLAT: return new Flat(tilesPerSide);
+            case SPARSE: return new Sparse(tilesPerSide);
+            default: return new OffHeap(tilesPerSide);
+        }
+    }
+
+    // Flat while a fully painted canvas is small; otherwise sparse, unless even that could
+    // need more than a quarter of the heap
+    static Kind choose(int tilesPerSide) {
+        long dense = denseBytes(tilesPerSide);
+        if (dense <= FLAT_LIMIT) return Kind.FLAT;
+        if (dense <= Runtime.getRuntime().maxMemory() / 4) return Kind.SPARSE;
+        return Kind.OFFHEAP;
+    }
+
+    static long denseBytes(int tilesPerSide) {
+        return 4L * TILE_INTS * tilesPerSide * tilesPerSide;
+    }
+
+    abstract int get(int t, int i);
+    abstract void set(int t, int i, int color);
+    abstract void fill(int t, int from, int to, int color);
+    // Copies n ints of tile t starting at i into dst[off..]
+    abstract void read(int t, int i, int[] dst, int off, int n);
+    abstract void write(int t, int[] src);
+    // Makes tile t writable and all zero; called before the first write after a clear
+    abstract void zero(int t);
+    // Every tile is blank again; stores may give their memory back
+    void release() {}
+    // Bytes of pixel storage currently allocated
+    abstract long allocatedBytes();
+    boolean offHeap() { return false; }
+
+    static final class Flat extends TileStore {
+        private final int[] pixels;
+
+        Flat(int tilesPerSide) {
+            super(Kind.FLAT, tilesPerSide * tilesPerSide);
+            this.pixels = new int[Math.multiplyExact(tileCount, TILE_INTS)];
+        }
+
+        int get(int t, int i) { return pixels[t * TILE_INTS + i]; }
+        void set(int t, int i, int color) { pixels[t * TILE_INTS + i] = color; }
+        void fill(int t, int from, int to, int color) { Arrays.fill(pixels, t * TILE_INTS + from, t * TILE_INTS + to, color); }
+        void read(int t, int i, int[] dst, int off, int n) { System.arraycopy(pixels, t * TILE_INTS + i, dst, off, n); }
+        void write(int t, int[] src) { System.arraycopy(src, 0, pixels, t * TILE_INTS, TILE_INTS); }
+        void zero(int t) { Arrays.fill(pixels, t * TILE_INTS, (t + 1) * TILE_INTS, 0); }
+        long allocatedBytes() { return 4L * pixels.length; }
+    }
+
+    static final class Sparse extends TileStore {
+        private final int[][] tiles;
+        private int allocated;
+
+        Sparse(int tilesPerSide) {
+            super(Kind.SPARSE, tilesPerSide * tilesPerSide);
+            this.tiles = new int[tileCount][];
+        }
+
+        // Readers aren't synchronized with writers, so a blank flag may be seen cleared before the array
+        int get(int t, int i) {
+            int[] tile = tiles[t];
+            return tile == null ? 0 : tile[i];
+        }
+
+        void set(int t, int i, int color) { tiles[t][i] = color; }
+        void fill(int t, int from, int to, int color) { Arrays.fill(tiles[t], from, to, color); }
+
+        void read(int t, int i, int[] dst, int off, int n) {
+            int[] tile = tiles[t];
+            if (tile == null) Arrays.fill(dst, off, off + n, 0);
+            else System.arraycopy(tile, i, dst, off, n);
+        }
+
+        void write(int t, int[] src) { System.arraycopy(src, 0, tiles[t], 0, TILE_INTS); }
+
+        void zero(int t) {
+            if (tiles[t] == null) {
+                tiles[t] = new int[TILE_INTS];
+                allocated++;
+            } else {
+                Arrays.fill(tiles[t], 0);
+            }
+        }
+
+        void release() {
+            Arrays.fill(tiles, null);
+            allocated = 0;
+        }
+
+        long allocatedBytes() { return 4L * TILE_INTS * allocated + 8L * tiles.length; }
+    }
+
+    static final class OffHeap extends TileStore {
+        private static final int[] ZERO = new int[TILE_INTS];
+
+        private final int tilesPerSide;
+        private final IntBuffer[] rows;
+        private int allocated;
+
+        OffHeap(int tilesPerSide) {
+            super(Kind.OFFHEAP, tilesPerSide * tilesPerSide);
+            this.tilesPerSide = tilesPerSide;
+            this.rows = new IntBuffer[tilesPerSide];
+        }
+
+        private IntBuffer row(int t) { return rows[t / tilesPerSide]; }
+        private int base(int t) { return (t % tilesPerSide) * TILE_INTS; }
+
+        int get(int t, int i) {
+            IntBuffer row = row(t);
+            return row == null ? 0 : row.get(base(t) + i);
+        }
+
+        void set(int t, int i, int color) { row(t).put(base(t) + i, color); }
+
+        void fill(int t, int from, int to, int color) {
+            IntBuffer row = row(t);
+            int b = base(t);
+            for (int i = from; i < to; i++) row.put(b + i, color);
+        }
+
+        void read(int t, int i, int[] dst, int off, int n) {
+            IntBuffer row = row(t);
+            if (row == null) Arrays.fill(dst, off, off + n, 0);
+            else row.get(base(t) + i, dst, off, n);
+        }
+
+        void write(int t, int[] src) { row(t).put(base(t), src, 0, TILE_INTS); }
+
+        void zero(int t) {
+            int r = t / tilesPerSide;
+            if (rows[r] == null) {
+                // allocateDirect hands back zeroed memory
+                rows[r] = ByteBuffer.allocateDirect(4 * TILE_INTS * tilesPerSide)
+                        .order(ByteOrder.nativeOrder()).asIntBuffer();
+                allocated++;
+            } else {
+                rows[r].put(base(t), ZERO, 0, TILE_INTS);
+            }
+        }
+
+        long allocatedBytes() { return 4L * TILE_INTS * tilesPerSide * allocated; }
+        boolean offHeap() { return true; }
+    }
+}
@@ -0,0 +1,174 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Square canvas split into TILE x TILE tiles, each a flat row-major int[] of ARGB values
+// (0 = blank). Every write stamps its tile with the next value of a monotonically
+// increasing version, so "what changed since version N" is a per-tile compare, and
+// sets the tile's dirty bit for the renderer. clear() only flags tiles as blank; their
+// pixels are zeroed lazily on the next write. Where the pixels live is up to the
+// TileStore, picked from the canvas size.
+//
+// Writes are synchronized, since the client paints locally on the FX thread while its
+// listener applies server updates. Reads are not: a reader may see a partially applied
+// batch, exactly as with the old int[][].
+public class TiledCanvas {
+    static final int TILE_SHIFT = 5;
+    static final int TILE = 1 << TILE_SHIFT;
+    private static final int TILE_MASK = TILE - 1;
+
+    final int size;
+    final int tilesPerSide;
+    private final TileStore store;
+    private final boolean[] blank;
+    private final long[] versions;
+    private final AtomicLongArray dirty;
+    private volatile long version;
+
+    public TiledCanvas(int size) {
+        this.size = size;
+        this.tilesPerSide = (size + TILE - 1) >> TILE_SHIFT;
+        int count = tilesPerSide * tilesPerSide;
+        this.store = TileStore.create(tilesPerSide);
+        this.blank = new boolean[count];
+        Arrays.fill(blank, true);
+        this.versions = new long[count];
+        this.dirty = new AtomicLongArray((count + 63) >> 6);
+    }
+
+    int size() { return size; }
+    int tileCount() { return blank.length; }
+    long version() { return version; }
+    long tileVersion(int t) { return versions[t]; }
+
+    int tileIndex(int x, int y) { return (y >> TILE_SHIFT) * tilesPerSide + (x >> TILE_SHIFT); }
+    int tileX(int t) { return (t % tilesPerSide) << TILE_SHIFT; }
+    int tileY(int t) { return (t / tilesPerSide) << TILE_SHIFT; }
+    int tileWidth(int t) { return Math.min(TILE, size - tileX(t)); }
+    int tileHeight(int t) { return Math.min(TILE, size - tileY(t)); }
+
+    boolean contains(int x, int y) { return x >= 0 && x < size && y >= 0 && y < size; }
+
+    int get(int x, int y) {
+        int t = tileIndex(x, y);
+        return blank[t] ? 0 : store.get(t, ((y & TILE_MASK) << TILE_SHIFT) | (x & TILE_MASK));
+    }
+
+    synchronized void set(int x, int y, int color) {
+        int t = tileIndex(x, y);
+        writable(t);
+        store.set(t, ((y & TILE_MASK) << TILE_SHIFT) | (x & TILE_MASK), color);
+        touch(t);
+    }
+
+    // Paints len pixels to the right of (x, y); the span must lie inside the canvas
+    synchronized void fillSpan(int x, int y, int len, int color) {
+        int end = x + len;
+        int rowOffset = (y & TILE_MASK) << TILE_SHIFT;
+        while (x < end) {
+            int t = tileIndex(x, y);
+            int n = Math.min(end - x, TILE - (x & TILE_MASK));
+            int from = rowOffset | (x & TILE_MASK);
+            writable(t);
+            store.fill(t, from, from + n, color);
+            touch(t);
+            x += n;
+        }
+    }
+
+    // Copies row y (all x) into dst
+    void copyRow(int y, int[] dst) {
+        int rowOffset = (y & TILE_MASK) << TILE_SHIFT;
+        int base = (y >> TILE_SHIFT) * tilesPerSide;
+        for (int tx = 0; tx < tilesPerSide; tx++) {
+            int x0 = tx << TILE_SHIFT, n = Math.min(TILE, size - x0);
+            int t = base + tx;
+            if (blank[t]) Arrays.fill(dst, x0, x0 + n, 0);
+            else store.read(t, rowOffset, dst, x0, n);
+        }
+    }
+
+    // O(tiles): pixels are zeroed on their next write
+    synchronized void clear() {
+        long v = ++version;
+        Arrays.fill(blank, true);
+        store.release();
+        Arrays.fill(versions, v);
+        markAllDirty();
+    }
+
+    boolean isTileBlank(int t) { return blank[t]; }
+
+    // One line for the console when a studio is created
+    String footprint() {
+        long meta = blank.length * (1L + 8L) + 8L * dirty.length();
+        return String.format("Canvas %dx%d: %s store, %d tiles, %s of pixels allocated (%s if fully painted, %s), %s of tile metadata, max heap %s",
+                size, size, store.kind.toString().toLowerCase(), blank.length, bytes(store.allocatedBytes()),
+                bytes(TileStore.denseBytes(tilesPerSide)), store.offHeap() ? "off-heap" : "on-heap",
+                bytes(meta), bytes(Runtime.getRuntime().maxMemory()));
+    }
+
+    private static String bytes(long n) {
+        if (n < 1024) return n + " B";
+        if (n < 1024 * 1024) return String.format("%.1f KB", n / 1024.0);
+        if (n < 1024L * 1024 * 1024) return String.format("%.1f MB", n / (1024.0 * 1024));
+        return String.format("%.1f GB", n / (1024.0 * 1024 * 1024));
+    }
+
+    // Copies tile t row by row into dst (TILE * TILE ints)
+    void readTile(int t, int[] dst) {
+        if (blank[t]) Arrays.fill(dst, 0);
+        else store.read(t, 0, dst, 0, TILE * TILE);
+    }
+
+    synchronized void writeTile(int t, int[] src) {
+        writable(t);
+        store.write(t, src);
+        touch(t);
+    }
+
+    // Tiles written after the given version, in index order
+    int[] tilesNewerThan(long since) {
+        int[] out = new int[blank.length];
+        int n = 0;
+        for (int t = 0; t < blank.length; t++) if (versions[t] > since) out[n++] = t;
+        return Arrays.copyOf(out, n);
+    }
+
+    // --- Dirty tracking, for the renderer ---
+
+    int dirtyWords() { return dirty.length(); }
+
+    // Returns and clears the dirty bits of tiles 64w .. 64w+63
+    long takeDirtyWord(int w) {
+        return dirty.get(w) == 0 ? 0 : dirty.getAndSet(w, 0);
+    }
+
+    boolean anyDirty() {
+        for (int w = 0; w < dirty.length(); w++) if (dirty.get(w) != 0) return true;
+        return false;
+    }
+
+    void markAllDirty() {
+        int count = blank.length;
+        for (int w = 0; w < dirty.length(); w++)
+            dirty.set(w, count - (w << 6) >= 64 ? -1L : (1L << (count - (w << 6))) - 1);
+    }
+
+    private void writable(int t) {
+        if (blank[t]) {
+            store.zero(t);
+            blank[t] = false;
+        }
+    }
+
+    private void touch(int t) {
+        versions[t] = ++version;
+        long bit = 1L << t;
+        int w = t >> 6;
+        long cur;
+        do {
+            cur = dirty.get(w);
+            if ((cur & bit) != 0) return;
+        } while (!dirty.compareAndSet(w, cur, cur | bit));
+    }
+}
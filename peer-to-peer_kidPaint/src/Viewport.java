@@ -0,0 +1,89 @@
+import java.util.Arrays;
+
+// The part of the canvas a client subscribed to with MSG_VIEWPORT, widened to whole tiles so
+// every tile the client holds is complete. Such a client is sent only the pixel updates and
+// tiles inside it, plus now and then a low resolution overview of the whole canvas, so what it
+// costs follows the size of its window rather than the size of the canvas.
+public final class Viewport {
+    static final Viewport NONE = new Viewport(0, 0, 0, 0); // Joined, but hasn't said what it looks at yet
+
+    final int x0, y0, x1, y1; // Pixel bounds; x1 and y1 are exclusive
+
+    private Viewport(int x0, int y0, int x1, int y1) {
+        this.x0 = x0;
+        this.y0 = y0;
+        this.x1 = x1;
+        this.y1 = y1;
+    }
+
+    // The tiles a rectangle touches on a size x size canvas, or null when that is all of them
+    static Viewport of(int x, int y, int width, int height, int size) {
+        int x0 = tileFloor(x, size), y0 = tileFloor(y, size);
+        int x1 = tileCeil((long) x + Math.max(0, width), size), y1 = tileCeil((long) y + Math.max(0, height), size);
+        if (x1 <= x0 || y1 <= y0) return NONE;
+        if (x0 == 0 && y0 == 0 && x1 == size && y1 == size) return null;
+        return new Viewport(x0, y0, x1, y1);
+    }
+
+    private static int tileFloor(int v, int size) {
+        return Math.min(Math.max(v, 0), size) & ~(TiledCanvas.TILE - 1);
+    }
+
+    private static int tileCeil(long v, int size) {
+        return (int) Math.min(Math.max((v + TiledCanvas.TILE - 1) & ~(TiledCanvas.TILE - 1), 0), size);
+    }
+
+    boolean containsTile(TiledCanvas canvas, int t) {
+        int x = canvas.tileX(t), y = canvas.tileY(t);
+        return x >= x0 && x < x1 && y >= y0 && y < y1;
+    }
+
+    // Tiles inside 'now' but not inside 'before', in index order; null stands for the whole canvas
+    static int[] tilesGained(Viewport before, Viewport now, TiledCanvas canvas) {
+        if (before == null) return new int[0];
+        int size = canvas.size();
+        int x0 = now == null ? 0 : now.x0, y0 = now == null ? 0 : now.y0;
+        int x1 = now == null ? size : now.x1, y1 = now == null ? size : now.y1;
+        int[] out = new int[((x1 - x0 + TiledCanvas.TILE - 1) >> TiledCanvas.TILE_SHIFT) * ((y1 - y0 + TiledCanvas.TILE - 1) >> TiledCanvas.TILE_SHIFT)];
+        int n = 0;
+        for (int y = y0; y < y1; y += TiledCanvas.TILE)
+            for (int x = x0; x < x1; x += TiledCanvas.TILE) {
+                int t = canvas.tileIndex(x, y);
+                if (!before.containsTile(canvas, t)) out[n++] = t;
+            }
+        return Arrays.copyOf(out, n);
+    }
+
+    // The runs of b inside this viewport; b itself when all of them are, null when none is
+    PixelBatch clip(PixelBatch b) {
+        PixelBatch out = null;
+        for (int r = 0; r < b.runCount; r++) {
+            int x = b.x(r), y = b.y(r), end = x + b.length(r);
+            boolean inside = y >= y0 && y < y1 && x >= x0 && end <= x1;
+            if (inside && out == null) continue;
+            if (out == null) {
+                // First run that doesn't fit entirely: copy the ones before it
+                out = new PixelBatch(b.runCount);
+                out.reset(b.color);
+                for (int k = 0; k < r; k++) out.addSpan(b.x(k), b.y(k), b.length(k));
+            }
+            if (y < y0 || y >= y1) continue;
+            int from = Math.max(x, x0), to = Math.min(end, x1);
+            if (to > from) out.addSpan(from, y, to - from);
+        }
+        if (out == null) return b;
+        return out.isEmpty() ? null : out;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof Viewport)) return false;
+        Viewport v = (Viewport) o;
+        return v.x0 == x0 && v.y0 == y0 && v.x1 == x1 && v.y1 == y1;
+    }
+
+    @Override
+    public int hashCode() {
+        return ((x0 * 31 + y0) * 31 + x1) * 31 + y1;
+    }
+}
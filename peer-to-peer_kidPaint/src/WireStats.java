@@ -0,0 +1,120 @@
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+// Per message type counters of frames, bytes and socket write calls (one syscall each),
+// to confirm how much write combining saves. Always counted; printed every 10 seconds
+// when running with -Dkidpaint.wireStats=true.
+public class WireStats {
+    static final boolean REPORT = Boolean.getBoolean("kidpaint.wireStats");
+    private static final List<WireStats> ALL = new CopyOnWriteArrayList<>();
+
+    private final String name;
+    private final LongAdder[] frames = new LongAdder[256];
+    private final LongAdder[] bytes = new LongAdder[256];
+    private final LongAdder[] writes = new LongAdder[256];
+    // Broadcast tick coalescing: updates received vs. frames actually broadcast
+    private final LongAdder rawUpdates = new LongAdder(), rawPixels = new LongAdder();
+    private final LongAdder mergedFrames = new LongAdder(), mergedPixels = new LongAdder();
+    private volatile String history; // Latest OpLog report, if undo is used
+
+    private WireStats(String name) {
+        this.name = name;
+        for (int i = 0; i < 256; i++) {
+            frames[i] = new LongAdder();
+            bytes[i] = new LongAdder();
+            writes[i] = new LongAdder();
+        }
+    }
+
+    static synchronized WireStats create(String name) {
+        WireStats stats = new WireStats(name);
+        if (REPORT) {
+            if (ALL.isEmpty()) startReporter();
+            ALL.add(stats);
+        }
+        return stats;
+    }
+
+    void frame(int type, int length) {
+        frames[type & 0xFF].increment();
+        bytes[type & 0xFF].add(length);
+    }
+
+    void coalesced(int updates, long pixels, int frames, long framePixels) {
+        rawUpdates.add(updates);
+        rawPixels.add(pixels);
+        mergedFrames.add(frames);
+        mergedPixels.add(framePixels);
+    }
+
+    void history(String report) {
+        history = report;
+    }
+
+    // Charged to the type of the frame being written, which each writer tracks for itself
+    // since many connections write through the same WireStats
+    void socketWrite(int type) {
+        writes[type & 0xFF].increment();
+    }
+
+    Counted wrap(OutputStream socketOut) {
+        return new Counted(socketOut);
+    }
+
+    // Counts every write that reaches the socket stream, charging it to the frame last written
+    // through this stream; one per connection, used by its writer thread only
+    final class Counted extends FilterOutputStream {
+        private int type;
+
+        Counted(OutputStream socketOut) { super(socketOut); }
+
+        void frame(int type, int length) {
+            this.type = type;
+            WireStats.this.frame(type, length);
+        }
+
+        @Override public void write(int b) throws IOException {
+            socketWrite(type);
+            out.write(b);
+        }
+
+        @Override public void write(byte[] b, int off, int len) throws IOException {
+            socketWrite(type);
+            out.write(b, off, len);
+        }
+    }
+
+    String report() {
+        StringBuilder sb = new StringBuilder("[wire] " + name + ":");
+        long totalWrites = 0, totalBytes = 0;
+        for (int t = 0; t < 256; t++) {
+            long f = frames[t].sum(), w = writes[t].sum();
+            if (f == 0 && w == 0) continue;
+            long b = bytes[t].sum();
+            sb.append(String.format("%n  type %3d: %8d frames %12d bytes %8d writes", t, f, b, w));
+            totalWrites += w;
+            totalBytes += b;
+        }
+        sb.append(String.format("%n  total: %d bytes in %d writes", totalBytes, totalWrites));
+        if (rawUpdates.sum() > 0)
+            sb.append(String.format("%n  tick coalescing: %d updates (%d px) broadcast as %d frames (%d px)",
+                    rawUpdates.sum(), rawPixels.sum(), mergedFrames.sum(), mergedPixels.sum()));
+        if (history != null) sb.append(String.format("%n  ")).append(history);
+        return sb.toString();
+    }
+
+    private static void startReporter() {
+        Thread t = new Thread(() -> {
+            while (true) {
+                try { Thread.sleep(10_000); } catch (InterruptedException e) { return; }
+                for (WireStats s : ALL) System.out.println(s.report());
+            }
+        }, "wire-stats");
+        t.setDaemon(true);
+        t.start();
+    }
+}